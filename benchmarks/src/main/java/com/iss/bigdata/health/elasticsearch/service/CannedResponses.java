@@ -0,0 +1,77 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基准测试使用的录制查询结果, 存放在classpath下的synthea/&lt;索引名&gt;.json中
+ * 每个文件是某个用户在一个索引中的一页查询结果, 命中记录按排序键降序排列, 并带有sort值
+ */
+final class CannedResponses {
+    private CannedResponses() {
+    }
+
+    /**
+     * @param indexName 索引名
+     * @return 录制的命中记录
+     */
+    static SearchHit[] hits(String indexName) {
+        String resource = "synthea/" + indexName + ".json";
+        try (InputStream in = CannedResponses.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null)
+                throw new RuntimeException("找不到录制的查询结果" + resource);
+            try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, in)) {
+                return SearchResponse.fromXContent(parser).getHits().getHits();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("无法解析录制的查询结果" + resource, e);
+        }
+    }
+
+    /**
+     * 重复录制的命中记录, 得到指定条数的命中记录
+     * @param hits 录制的命中记录
+     * @param count 需要的条数
+     * @return 命中记录
+     */
+    static SearchHit[] repeat(SearchHit[] hits, int count) {
+        SearchHit[] repeated = new SearchHit[count];
+        for (int i = 0; i < count; i++)
+            repeated[i] = hits[i % hits.length];
+        return repeated;
+    }
+
+    /**
+     * 将多个索引的命中记录合并为一页查询结果, 即多类型查询的返回结果
+     * @param indices 索引名
+     * @param hitsPerIndex 每个索引的命中记录数
+     * @return 查询结果
+     */
+    static SearchResponse response(List<String> indices, int hitsPerIndex) {
+        List<SearchHit> hits = new ArrayList<>();
+        for (String indexName : indices)
+            hits.addAll(Arrays.asList(repeat(hits(indexName), hitsPerIndex)));
+        return response(hits.toArray(new SearchHit[hits.size()]));
+    }
+
+    /**
+     * @return 包含指定命中记录的一页查询结果
+     */
+    static SearchResponse response(SearchHit[] hits) {
+        SearchHits searchHits = new SearchHits(hits, hits.length, Float.NaN);
+        InternalSearchResponse internalResponse = new InternalSearchResponse(searchHits, null, null, null, false, null, 1);
+        return new SearchResponse(internalResponse, null, 5, 5, 0, 3, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+    }
+}
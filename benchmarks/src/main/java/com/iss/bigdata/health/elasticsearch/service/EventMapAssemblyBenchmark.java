@@ -0,0 +1,48 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import org.elasticsearch.action.search.SearchResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getAllTypeEventByUserId的完整解析过程: 构建全部事件类型的分组查询, 再将每组的一页结果解析进同一个EventMap
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventMapAssemblyBenchmark {
+    private static final String USER_ID = "the-user-87";
+
+    @Param({"20", "140"})
+    public int hitsPerIndex;
+
+    private Date start;
+    private Date end;
+    /** (查询的索引, 该查询的一页结果) */
+    private Map<String, SearchResponse> responses;
+
+    @Setup
+    public void setUp() {
+        start = new Date(0);
+        end = new Date();
+        responses = new HashMap<>();
+        for (PagedSearch search : EventSearches.groupedSearches(new EventMap(), EventSearches.allTypeQueries(USER_ID, start, end))) {
+            String[] indices = search.request().indices();
+            responses.put(Arrays.toString(indices), CannedResponses.response(Arrays.asList(indices), hitsPerIndex));
+        }
+    }
+
+    @Benchmark
+    public EventMap assemble() {
+        EventMap eventMap = new EventMap();
+        for (PagedSearch search : EventSearches.groupedSearches(eventMap, EventSearches.allTypeQueries(USER_ID, start, end)))
+            search.consume(responses.get(Arrays.toString(search.request().indices())));
+        return eventMap;
+    }
+}
@@ -0,0 +1,49 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.sort.SortOrder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 将一页命中记录解析为事件并放入EventMap的开销, 即putEachEventIntoList的热点路径, 每种事件类型分别测试
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HitDecodingBenchmark {
+
+    @Param({"allergies", "careplans", "conditions", "medications", "observation", "immunizations", "encounters"})
+    public String indexName;
+
+    @Param({"100", "1000"})
+    public int hits;
+
+    private QueryObject<?> query;
+    private SearchResponse response;
+
+    @Setup
+    public void setUp() {
+        query = new QueryObject<>("the-user-87", indexName, "synthea", EventTypeRegistry.getEventClass(indexName),
+                new Date(0), new Date());
+        response = CannedResponses.response(CannedResponses.repeat(CannedResponses.hits(indexName), hits));
+    }
+
+    @Benchmark
+    public EventMap decodePage() {
+        EventMap eventMap = new EventMap();
+        EventSearches.multiTypeSearches(eventMap, Collections.singletonList(query), query.getFilterNameAndOrderKey(), SortOrder.DESC)
+                .get(0)
+                .consume(response);
+        return eventMap;
+    }
+}
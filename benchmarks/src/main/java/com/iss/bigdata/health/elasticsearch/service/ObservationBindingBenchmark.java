@@ -0,0 +1,52 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.alibaba.fastjson.JSON;
+import com.iss.bigdata.health.elasticsearch.entity.Observation;
+import com.iss.bigdata.health.elasticsearch.help.SourceDecoder;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * fastjson将Observation的_source绑定到实体的开销, 对比直接解析字节与先转换为字符串再解析两种方式
+ * Observation注册的解码器就是{@link SourceDecoder#decode}, 各类型注册的解码器见{@link HitDecodingBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObservationBindingBenchmark {
+    /** 每次调用解析的记录数 */
+    private static final int HITS = 20;
+
+    private SearchHit[] hits;
+
+    @Setup
+    public void setUp() {
+        hits = CannedResponses.repeat(CannedResponses.hits("observation"), HITS);
+    }
+
+    /**
+     * SourceDecoder直接解析_source的字节
+     */
+    @Benchmark
+    @OperationsPerInvocation(HITS)
+    public void sourceBytes(Blackhole blackhole) {
+        for (SearchHit hit : hits)
+            blackhole.consume(SourceDecoder.decode(hit, Observation.class));
+    }
+
+    /**
+     * 先将_source转换为字符串再解析, 即引入SourceDecoder之前的方式
+     */
+    @Benchmark
+    @OperationsPerInvocation(HITS)
+    public void sourceAsString(Blackhole blackhole) {
+        for (SearchHit hit : hits)
+            blackhole.consume(JSON.parseObject(hit.getSourceAsString(), Observation.class));
+    }
+}
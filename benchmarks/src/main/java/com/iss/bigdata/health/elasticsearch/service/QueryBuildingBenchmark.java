@@ -0,0 +1,66 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.Event;
+import com.iss.bigdata.health.elasticsearch.entity.Observation;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.sort.SortOrder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 由查询对象构建SearchSourceBuilder, 以及将查询语句序列化为请求体的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuildingBenchmark {
+    private static final String USER_ID = "the-user-87";
+
+    private Date start;
+    private Date end;
+
+    @Setup
+    public void setUp() {
+        start = new Date(0);
+        end = new Date();
+    }
+
+    /**
+     * 全部事件类型的查询, 按排序键分组构建
+     */
+    @Benchmark
+    public List<SearchRequest> allTypeSearches() {
+        return PagedSearch.requests(EventSearches.groupedSearches(new EventMap(),
+                EventSearches.allTypeQueries(USER_ID, start, end)));
+    }
+
+    /**
+     * 全部事件类型的查询, 包括序列化为JSON请求体
+     */
+    @Benchmark
+    public int allTypeSearchBodies() {
+        int length = 0;
+        for (SearchRequest request : allTypeSearches())
+            length += Strings.toString(request.source()).length();
+        return length;
+    }
+
+    /**
+     * 单类型查询
+     */
+    @Benchmark
+    public SearchRequest specificSearch() {
+        List<Event<Observation>> events = new ArrayList<>();
+        return EventSearches.specificSearch(events::add, USER_ID, "observation", "synthea", Observation.class,
+                EventSearches.orderBy("date", SortOrder.DESC), "date", start, end, null, null).request();
+    }
+}
@@ -0,0 +1,152 @@
+package com.iss.bigdata.health.elasticsearch.client;
+
+import org.elasticsearch.client.RestClientBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Elasticsearch客户端的连接配置
+ * 可以直接通过setter设置, 也可以从classpath下的elasticsearch.properties中读取, 配置项如下:
+ * <pre>
+ * elasticsearch.hosts=http://node1:9200,http://node2:9200
+ * elasticsearch.maxConnPerRoute=10
+ * elasticsearch.maxConnTotal=30
+ * elasticsearch.keepAliveMillis=60000
+ * elasticsearch.connectTimeoutMillis=1000
+ * elasticsearch.socketTimeoutMillis=30000
+ * elasticsearch.maxRetryTimeoutMillis=30000
+ * </pre>
+ */
+public class ElasticSearchClientConfig {
+    /** 默认配置文件 */
+    public static final String DEFAULT_RESOURCE = "elasticsearch.properties";
+    private static final String PREFIX = "elasticsearch.";
+
+    /** 节点地址, 多个节点之间按照轮询的方式分发请求 */
+    private List<String> hosts = new ArrayList<>(Arrays.asList("http://localhost:9200"));
+    /** 每个节点的最大连接数 */
+    private int maxConnPerRoute = RestClientBuilder.DEFAULT_MAX_CONN_PER_ROUTE;
+    /** 所有节点的最大连接数 */
+    private int maxConnTotal = RestClientBuilder.DEFAULT_MAX_CONN_TOTAL;
+    /** 空闲连接的保持时间, 小于等于0时使用服务端返回的Keep-Alive */
+    private long keepAliveMillis = 60000;
+    private int connectTimeoutMillis = RestClientBuilder.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = RestClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    /** 一个请求在多个节点之间重试的最长时间 */
+    private int maxRetryTimeoutMillis = RestClientBuilder.DEFAULT_MAX_RETRY_TIMEOUT_MILLIS;
+
+    public ElasticSearchClientConfig() {
+    }
+
+    /**
+     * 读取classpath下的elasticsearch.properties, 文件不存在时使用默认配置(localhost:9200)
+     * @return 客户端配置
+     */
+    public static ElasticSearchClientConfig load() {
+        Properties properties = new Properties();
+        try (InputStream in = ElasticSearchClientConfig.class.getClassLoader().getResourceAsStream(DEFAULT_RESOURCE)) {
+            if (in != null)
+                properties.load(in);
+        } catch (IOException e) {
+            throw new RuntimeException("无法读取配置文件" + DEFAULT_RESOURCE, e);
+        }
+        return fromProperties(properties);
+    }
+
+    /**
+     * 从Properties中读取配置, 没有设置的配置项使用默认值
+     * @param properties 以elasticsearch.为前缀的配置项
+     * @return 客户端配置
+     */
+    public static ElasticSearchClientConfig fromProperties(Properties properties) {
+        ElasticSearchClientConfig config = new ElasticSearchClientConfig();
+        String hosts = properties.getProperty(PREFIX + "hosts");
+        if (hosts != null && !hosts.trim().isEmpty()) {
+            config.hosts = new ArrayList<>();
+            for (String host : hosts.split(","))
+                if (!host.trim().isEmpty())
+                    config.hosts.add(host.trim());
+        }
+        config.maxConnPerRoute = Integer.parseInt(properties.getProperty(PREFIX + "maxConnPerRoute", String.valueOf(config.maxConnPerRoute)));
+        config.maxConnTotal = Integer.parseInt(properties.getProperty(PREFIX + "maxConnTotal", String.valueOf(config.maxConnTotal)));
+        config.keepAliveMillis = Long.parseLong(properties.getProperty(PREFIX + "keepAliveMillis", String.valueOf(config.keepAliveMillis)));
+        config.connectTimeoutMillis = Integer.parseInt(properties.getProperty(PREFIX + "connectTimeoutMillis", String.valueOf(config.connectTimeoutMillis)));
+        config.socketTimeoutMillis = Integer.parseInt(properties.getProperty(PREFIX + "socketTimeoutMillis", String.valueOf(config.socketTimeoutMillis)));
+        config.maxRetryTimeoutMillis = Integer.parseInt(properties.getProperty(PREFIX + "maxRetryTimeoutMillis", String.valueOf(config.maxRetryTimeoutMillis)));
+        return config;
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public void setHosts(List<String> hosts) {
+        this.hosts = hosts;
+    }
+
+    public int getMaxConnPerRoute() {
+        return maxConnPerRoute;
+    }
+
+    public void setMaxConnPerRoute(int maxConnPerRoute) {
+        this.maxConnPerRoute = maxConnPerRoute;
+    }
+
+    public int getMaxConnTotal() {
+        return maxConnTotal;
+    }
+
+    public void setMaxConnTotal(int maxConnTotal) {
+        this.maxConnTotal = maxConnTotal;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public int getMaxRetryTimeoutMillis() {
+        return maxRetryTimeoutMillis;
+    }
+
+    public void setMaxRetryTimeoutMillis(int maxRetryTimeoutMillis) {
+        this.maxRetryTimeoutMillis = maxRetryTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ElasticSearchClientConfig{" +
+                "hosts=" + hosts +
+                ", maxConnPerRoute=" + maxConnPerRoute +
+                ", maxConnTotal=" + maxConnTotal +
+                ", keepAliveMillis=" + keepAliveMillis +
+                ", connectTimeoutMillis=" + connectTimeoutMillis +
+                ", socketTimeoutMillis=" + socketTimeoutMillis +
+                ", maxRetryTimeoutMillis=" + maxRetryTimeoutMillis +
+                '}';
+    }
+}
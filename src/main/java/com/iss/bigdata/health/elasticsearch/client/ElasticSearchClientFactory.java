@@ -0,0 +1,92 @@
+package com.iss.bigdata.health.elasticsearch.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Elasticsearch客户端工厂
+ * 每个RestHighLevelClient都持有一个独立的连接池, 因此所有服务实例应当共用同一个客户端, 并在应用关闭时调用
+ * {@link #closeSharedClient()}释放连接
+ * 配置了多个节点时, 客户端按照轮询的方式将请求分发到各个节点, 并在节点失败时自动重试其他节点
+ */
+public final class ElasticSearchClientFactory {
+    private static RestHighLevelClient sharedClient;
+
+    private ElasticSearchClientFactory() {
+    }
+
+    /**
+     * 获取共享的客户端, 第一次调用时使用{@link ElasticSearchClientConfig#load()}的配置创建
+     * @return 共享的客户端
+     */
+    public static synchronized RestHighLevelClient getSharedClient() {
+        if (sharedClient == null)
+            sharedClient = create(ElasticSearchClientConfig.load());
+        return sharedClient;
+    }
+
+    /**
+     * 使用指定的配置创建共享的客户端, 必须在第一次使用共享客户端之前调用, 且只能调用一次
+     * 服务在构造时就持有了共享的客户端, 之后再替换客户端会使这些服务继续使用旧的客户端, 因此不允许重复初始化
+     * @param config 客户端配置
+     * @throws RuntimeException 共享的客户端已经创建
+     */
+    public static synchronized void initSharedClient(ElasticSearchClientConfig config) {
+        if (sharedClient != null)
+            throw new RuntimeException("共享的客户端已经创建, initSharedClient必须在第一次使用共享客户端之前调用");
+        sharedClient = create(config);
+    }
+
+    /**
+     * 关闭共享的客户端并释放连接池, 只应在应用关闭时调用
+     * 之前使用共享客户端创建的服务不能再继续使用; 之后再调用{@link #getSharedClient()}会重新创建
+     * @throws RuntimeException 关闭连接池失败, 此时共享的客户端同样被清除
+     */
+    public static synchronized void closeSharedClient() {
+        if (sharedClient == null)
+            return;
+        try {
+            sharedClient.close();
+        } catch (IOException e) {
+            throw new RuntimeException("关闭Elasticsearch客户端失败", e);
+        } finally {
+            sharedClient = null;
+        }
+    }
+
+    /**
+     * 按照配置创建一个新的客户端, 调用者负责关闭
+     * @param config 客户端配置
+     * @return 新的客户端
+     */
+    public static RestHighLevelClient create(ElasticSearchClientConfig config) {
+        List<String> hosts = config.getHosts();
+        if (hosts == null || hosts.isEmpty())
+            throw new IllegalArgumentException("至少需要配置一个Elasticsearch节点");
+
+        HttpHost[] httpHosts = new HttpHost[hosts.size()];
+        for (int i = 0; i < httpHosts.length; i++)
+            httpHosts[i] = HttpHost.create(hosts.get(i));
+
+        RestClientBuilder builder = RestClient.builder(httpHosts)
+                .setMaxRetryTimeoutMillis(config.getMaxRetryTimeoutMillis())
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout(config.getConnectTimeoutMillis())
+                        .setSocketTimeout(config.getSocketTimeoutMillis()))
+                .setHttpClientConfigCallback(httpClient -> httpClient
+                        .setMaxConnPerRoute(config.getMaxConnPerRoute())
+                        .setMaxConnTotal(config.getMaxConnTotal())
+                        .setKeepAliveStrategy((response, context) -> {
+                            if (config.getKeepAliveMillis() > 0)
+                                return config.getKeepAliveMillis();
+                            return DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        }));
+        return new RestHighLevelClient(builder);
+    }
+}
@@ -1,5 +1,7 @@
 package com.iss.bigdata.health.elasticsearch.entity;
 
+import com.alibaba.fastjson.annotation.JSONField;
+
 import java.util.Date;
 import java.util.Map;
 
@@ -9,7 +11,7 @@ import java.util.Map;
 public class Allergy {
     private long timestamp;
     private String user_id;
-    private Date start;
+    private long start = EpochMillis.NONE;
     private String encounter;
     private Map<String, String> allergies;
 
@@ -20,7 +22,7 @@ public class Allergy {
 
         this.timestamp = timestamp;
         this.user_id = user_id;
-        this.start = start;
+        this.start = EpochMillis.toMillis(start);
         this.encounter = encounter;
         this.allergies = allergies;
     }
@@ -42,11 +44,25 @@ public class Allergy {
     }
 
     public Date getStart() {
+        return EpochMillis.toDate(start);
+    }
+
+    @JSONField(name = "start", deserializeUsing = EpochMillis.Codec.class)
+    public void setStartMillis(long start) {
+        this.start = start;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有start时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getStartMillis() {
         return start;
     }
 
+    @JSONField(deserialize = false)
     public void setStart(Date start) {
-        this.start = start;
+        this.start = EpochMillis.toMillis(start);
     }
 
     public String getEncounter() {
@@ -70,7 +86,7 @@ public class Allergy {
         return "Allergy{" +
                 "timestamp=" + timestamp +
                 ", user_id='" + user_id + '\'' +
-                ", start=" + start +
+                ", start=" + getStart() +
                 ", encounter='" + encounter + '\'' +
                 ", allergies=" + allergies +
                 '}';
@@ -0,0 +1,15 @@
+package com.iss.bigdata.health.elasticsearch.entity;
+
+/**
+ * 带有SNOMED/RxNorm编码的实体
+ * code、rcode、description、reasondescription来自有限的词表, 却在大量记录中重复出现,
+ * 解码器解析出实体后通过{@link #internCodes(StringDictionary)}把它们换成字典中的共享实例
+ */
+public interface CodedEntity {
+
+    /**
+     * 将编码和描述替换为字典中内容相同的实例
+     * @param dictionary 字典
+     */
+    void internCodes(StringDictionary dictionary);
+}
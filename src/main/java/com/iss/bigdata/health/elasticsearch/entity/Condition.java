@@ -2,6 +2,8 @@
  * Copyright 2018 bejson.com
  */
 package com.iss.bigdata.health.elasticsearch.entity;
+import com.alibaba.fastjson.annotation.JSONField;
+
 import java.util.Date;
 
 /**
@@ -9,15 +11,15 @@ import java.util.Date;
  *
  * @author dujijun
  */
-public class Condition {
+public class Condition implements CodedEntity {
 
     private long timestamp;
     private String user_id;
-    private Date date;
+    private long date = EpochMillis.NONE;
     private String code;
     private String rcode;
-    private Date start;
-    private Date stop;
+    private long start = EpochMillis.NONE;
+    private long stop = EpochMillis.NONE;
     private String encounter;
     private String description;
     private String reasondescription;
@@ -37,11 +39,25 @@ public class Condition {
     }
 
     public Date getDate() {
+        return EpochMillis.toDate(date);
+    }
+
+    @JSONField(name = "date", deserializeUsing = EpochMillis.Codec.class)
+    public void setDateMillis(long date) {
+        this.date = date;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有date时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getDateMillis() {
         return date;
     }
 
+    @JSONField(deserialize = false)
     public void setDate(Date date) {
-        this.date = date;
+        this.date = EpochMillis.toMillis(date);
     }
 
     public void setCode(String code) {
@@ -58,17 +74,45 @@ public class Condition {
         return rcode;
     }
 
+    @JSONField(deserialize = false)
     public void setStart(Date start) {
-        this.start = start;
+        this.start = EpochMillis.toMillis(start);
     }
     public Date getStart() {
+        return EpochMillis.toDate(start);
+    }
+
+    @JSONField(name = "start", deserializeUsing = EpochMillis.Codec.class)
+    public void setStartMillis(long start) {
+        this.start = start;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有start时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getStartMillis() {
         return start;
     }
 
+    @JSONField(deserialize = false)
     public void setStop(Date stop) {
-        this.stop = stop;
+        this.stop = EpochMillis.toMillis(stop);
     }
     public Date getStop() {
+        return EpochMillis.toDate(stop);
+    }
+
+    @JSONField(name = "stop", deserializeUsing = EpochMillis.Codec.class)
+    public void setStopMillis(long stop) {
+        this.stop = stop;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有stop时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getStopMillis() {
         return stop;
     }
 
@@ -93,16 +137,24 @@ public class Condition {
         return reasondescription;
     }
 
+    @Override
+    public void internCodes(StringDictionary dictionary) {
+        code = dictionary.intern(code);
+        rcode = dictionary.intern(rcode);
+        description = dictionary.intern(description);
+        reasondescription = dictionary.intern(reasondescription);
+    }
+
     @Override
     public String toString() {
         return "Condition{" +
                 "timestamp=" + timestamp +
                 ", user_id='" + user_id + '\'' +
-                ", date=" + date +
+                ", date=" + getDate() +
                 ", code='" + code + '\'' +
                 ", rcode='" + rcode + '\'' +
-                ", start=" + start +
-                ", stop=" + stop +
+                ", start=" + getStart() +
+                ", stop=" + getStop() +
                 ", encounter='" + encounter + '\'' +
                 ", description='" + description + '\'' +
                 ", reasondescription='" + reasondescription + '\'' +
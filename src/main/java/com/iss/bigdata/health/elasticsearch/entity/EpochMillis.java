@@ -0,0 +1,117 @@
+package com.iss.bigdata.health.elasticsearch.entity;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.parser.DefaultJSONParser;
+import com.alibaba.fastjson.parser.JSONToken;
+import com.alibaba.fastjson.parser.deserializer.ObjectDeserializer;
+import com.alibaba.fastjson.util.TypeUtils;
+
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * 以long毫秒时间戳保存的日期
+ * 事件和实体中的日期都以基本类型long保存, 不再为每个日期创建一个Date对象, 需要Date时由访问方法临时创建
+ */
+public final class EpochMillis {
+    /** 表示没有日期, 对应原来的null */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private EpochMillis() {
+    }
+
+    /**
+     * @return millis为NONE时返回null
+     */
+    public static Date toDate(long millis) {
+        return millis == NONE ? null : new Date(millis);
+    }
+
+    /**
+     * @return date为null时返回NONE
+     */
+    public static long toMillis(Date date) {
+        return date == null ? NONE : date.getTime();
+    }
+
+    /**
+     * 解析日期字符串, 与fastjson解析Date字段的结果相同
+     * synthea数据中最常见的yyyy-MM-dd直接计算, 不创建中间对象, 其余格式交给fastjson
+     * @param text 日期字符串, 如2010-01-01, 或毫秒时间戳
+     * @return 毫秒时间戳, 空字符串时返回NONE
+     */
+    public static long parse(String text) {
+        if (text == null || text.isEmpty())
+            return NONE;
+        if (isIsoDate(text)) {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 7);
+            int day = digits(text, 8, 10);
+            // 与fastjson一致, 日期按照JSON.defaultTimeZone的零点计算
+            TimeZone timeZone = JSON.defaultTimeZone;
+            long utcMillis = daysFromCivil(year, month, day) * MILLIS_PER_DAY;
+            int offset = timeZone.getOffset(utcMillis - timeZone.getRawOffset());
+            int next = timeZone.getOffset(utcMillis - offset);
+            if (next != offset) {
+                int after = timeZone.getOffset(utcMillis - next);
+                // 零点恰好落在夏令时切换跳过的时间里时, 与Calendar一样按照切换前(较小)的偏移计算
+                offset = after == next ? next : Math.min(offset, next);
+            }
+            return utcMillis - offset;
+        }
+        Date date = TypeUtils.castToDate(text);
+        return date == null ? NONE : date.getTime();
+    }
+
+    private static boolean isIsoDate(String text) {
+        if (text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-')
+            return false;
+        for (int i = 0; i < 10; i++)
+            if (i != 4 && i != 7 && (text.charAt(i) < '0' || text.charAt(i) > '9'))
+                return false;
+        return true;
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++)
+            value = value * 10 + text.charAt(i) - '0';
+        return value;
+    }
+
+    // 公历日期距1970-01-01的天数
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * fastjson的反序列化器, 把日期字符串或毫秒时间戳直接解析为long, 用于实体中以long保存的日期字段
+     */
+    public static class Codec implements ObjectDeserializer {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T deserialze(DefaultJSONParser parser, Type type, Object fieldName) {
+            Object value = parser.parse(fieldName);
+            if (value == null)
+                return (T) Long.valueOf(NONE);
+            if (value instanceof Number)
+                return (T) Long.valueOf(((Number) value).longValue());
+            if (value instanceof Date)
+                return (T) Long.valueOf(((Date) value).getTime());
+            return (T) Long.valueOf(parse(value.toString()));
+        }
+
+        @Override
+        public int getFastMatchToken() {
+            return JSONToken.LITERAL_STRING;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.iss.bigdata.health.elasticsearch.entity;
 
+import com.alibaba.fastjson.annotation.JSONField;
+
 import java.util.Date;
 
 /**
+ * 日期以long毫秒时间戳保存, {@link #getDate()}每次调用都会创建新的Date对象,
+ * 排序、比较等频繁访问日期的场景应使用{@link #getDateMillis()}
  * Created by dujijun on 2018/1/3.
  */
 public class Event<T> {
     private String eventId;
     private T detail;
-    private Date date;
+    private long dateMillis = EpochMillis.NONE;
 
     public Event(String eventId, T detail) {
         this.eventId = eventId;
@@ -18,7 +22,16 @@ public class Event<T> {
     public Event(String eventId, T detail, Date date) {
         this.eventId = eventId;
         this.detail = detail;
-        this.date = date;
+        this.dateMillis = EpochMillis.toMillis(date);
+    }
+
+    /**
+     * @param dateMillis 事件日期的毫秒时间戳, 没有日期时为{@link EpochMillis#NONE}
+     */
+    public Event(String eventId, T detail, long dateMillis) {
+        this.eventId = eventId;
+        this.detail = detail;
+        this.dateMillis = dateMillis;
     }
 
     public Event() {
@@ -40,12 +53,31 @@ public class Event<T> {
         this.detail = detail;
     }
 
+    /**
+     * @return 事件日期, 没有日期时返回null
+     */
     public Date getDate() {
-        return date;
+        return EpochMillis.toDate(dateMillis);
     }
 
     public void setDate(Date date) {
-        this.date = date;
+        this.dateMillis = EpochMillis.toMillis(date);
+    }
+
+    /**
+     * @return 事件日期的毫秒时间戳, 没有日期时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getDateMillis() {
+        return dateMillis;
+    }
+
+    public void setDateMillis(long dateMillis) {
+        this.dateMillis = dateMillis;
+    }
+
+    public boolean hasDate() {
+        return dateMillis != EpochMillis.NONE;
     }
 
     @Override
@@ -53,7 +85,7 @@ public class Event<T> {
         return "Event{" +
                 "eventId='" + eventId + '\'' +
                 ", detail=" + detail +
-                ", date=" + date +
+                ", date=" + getDate() +
                 '}';
     }
 }
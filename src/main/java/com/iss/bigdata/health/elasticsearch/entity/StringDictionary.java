@@ -0,0 +1,63 @@
+package com.iss.bigdata.health.elasticsearch.entity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 有容量上限的字符串字典, 内容相同的字符串共享同一个实例
+ * 每个索引注册的解码器各自持有一个字典, 用于{@link CodedEntity}的编码和描述,
+ * 因此缓存中的EventMap不再为每条记录各保存一份相同的字符串; 字典随解码器一起被回收
+ * 字典写满后不再加入新的字符串, 直接返回原字符串, 因此占用的内存有上限
+ */
+public final class StringDictionary {
+    /** 默认容量, 远大于synthea中单个索引使用的词表大小 */
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private final int capacity;
+    private final Map<String, String> entries;
+
+    /**
+     * @param capacity 最多保存的字符串数量
+     */
+    public StringDictionary(int capacity) {
+        if (capacity <= 0)
+            throw new RuntimeException("字典容量必须大于0: " + capacity);
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(Math.min(capacity, DEFAULT_CAPACITY));
+    }
+
+    /**
+     * @param value 字符串, 可以为null
+     * @return 字典中内容相同的实例; 字典中没有且已经写满时返回value本身
+     */
+    public String intern(String value) {
+        if (value == null)
+            return null;
+        String existing = entries.get(value);
+        if (existing != null)
+            return existing;
+        // 并发写入时可能略微超过容量, 不影响正确性
+        if (entries.size() >= capacity)
+            return value;
+        existing = entries.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    /**
+     * @return 字典中的字符串数量
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 清空字典, 已经解析出的实体不受影响
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -2,6 +2,8 @@
  * Copyright 2018 bejson.com
  */
 package com.iss.bigdata.health.elasticsearch.entity;
+import com.alibaba.fastjson.annotation.JSONField;
+
 import java.util.Date;
 
 /**
@@ -14,8 +16,8 @@ public class UserBasic {
     private long timestamp;
     private String user_id;
     private String name;
-    private Date birthdate;
-    private Date deathdate;
+    private long birthdate = EpochMillis.NONE;
+    private long deathdate = EpochMillis.NONE;
     private String gender;
     private String race;
     public void setTimestamp(long timestamp) {
@@ -39,17 +41,45 @@ public class UserBasic {
         return name;
     }
 
+    @JSONField(deserialize = false)
     public void setBirthdate(Date birthdate) {
-        this.birthdate = birthdate;
+        this.birthdate = EpochMillis.toMillis(birthdate);
     }
     public Date getBirthdate() {
+        return EpochMillis.toDate(birthdate);
+    }
+
+    @JSONField(name = "birthdate", deserializeUsing = EpochMillis.Codec.class)
+    public void setBirthdateMillis(long birthdate) {
+        this.birthdate = birthdate;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有birthdate时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getBirthdateMillis() {
         return birthdate;
     }
 
+    @JSONField(deserialize = false)
     public void setDeathdate(Date deathdate) {
-        this.deathdate = deathdate;
+        this.deathdate = EpochMillis.toMillis(deathdate);
     }
     public Date getDeathdate() {
+        return EpochMillis.toDate(deathdate);
+    }
+
+    @JSONField(name = "deathdate", deserializeUsing = EpochMillis.Codec.class)
+    public void setDeathdateMillis(long deathdate) {
+        this.deathdate = deathdate;
+    }
+
+    /**
+     * @return 毫秒时间戳, 没有deathdate时返回{@link EpochMillis#NONE}
+     */
+    @JSONField(serialize = false)
+    public long getDeathdateMillis() {
         return deathdate;
     }
 
@@ -73,8 +103,8 @@ public class UserBasic {
                 "timestamp=" + timestamp +
                 ", user_id='" + user_id + '\'' +
                 ", name='" + name + '\'' +
-                ", birthdate=" + birthdate +
-                ", deathdate=" + deathdate +
+                ", birthdate=" + getBirthdate() +
+                ", deathdate=" + getDeathdate() +
                 ", gender='" + gender + '\'' +
                 ", race='" + race + '\'' +
                 '}';
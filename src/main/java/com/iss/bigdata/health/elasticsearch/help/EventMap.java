@@ -46,7 +46,14 @@ public class EventMap extends HashMap<String, List<?>> {
      * @return
      */
     public <T> List<Event<T>> getEventList(Class<T> classType, String key){
-        return (List<Event<T>>)super.get(key);
+        List<?> events = super.get(key);
+        // 使用别名获取时, 按照注册的索引名查找
+        if (events == null) {
+            EventTypeRegistry.Entry<?> eventType = EventTypeRegistry.get(key);
+            if (eventType != null)
+                events = super.get(eventType.getIndexName());
+        }
+        return (List<Event<T>>) events;
     }
 
     @Override
@@ -56,30 +63,11 @@ public class EventMap extends HashMap<String, List<?>> {
 
 
     /**
-     *
-     * @param type
-     * @return
+     * 通过索引名获取事件的Class类型, 索引名及其别名在{@link EventTypeRegistry}中注册
+     * @param type 索引名, 如observation或observations
+     * @return 未注册的索引返回null
      */
     public static Class getEventClassFromString(String type){
-        switch (type) {
-            case "allergies":
-                return Allergy.class;
-            case "careplans":
-                return CarePlan.class;
-            case "conditions":
-                return Condition.class;
-            case "encounters":
-                return Encounter.class;
-            case "immunizations":
-                return Immunization.class;
-            case "medications":
-                return Medication.class;
-            case "observations":
-                return Observation.class;
-            case "patients":
-                return UserBasic.class;
-            default:
-                return null;
-        }
+        return EventTypeRegistry.getEventClass(type);
     }
 }
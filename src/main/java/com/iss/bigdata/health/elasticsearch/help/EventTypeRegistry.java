@@ -0,0 +1,202 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import org.elasticsearch.search.SearchHit;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 事件类型注册表, 统一维护每个索引对应的实体类型、排序键以及解码器
+ * 新的事件类型只需要在这里注册, 查询构建、结果解析和EventMap都从注册表中获取类型信息
+ */
+public final class EventTypeRegistry {
+
+    /** (索引名或别名, 事件类型) */
+    private static final Map<String, Entry<?>> ENTRIES = new ConcurrentHashMap<>();
+    /** 按照注册顺序排列的事件类型, 不包含别名 */
+    private static final List<Entry<?>> REGISTERED = new ArrayList<>();
+
+    static {
+        register("conditions", Condition.class, "start", true);
+        register("allergies", Allergy.class, "start", true);
+        register("careplans", CarePlan.class, "start", true);
+        register("medications", Medication.class, "start", true);
+        register("observation", Observation.class, "date", true, "observations");
+        register("immunizations", Immunization.class, "date", true);
+        register("encounters", Encounter.class, "date", true);
+        register("patient", UserBasic.class, "timestamp", false, "patients");
+    }
+
+    private EventTypeRegistry() {
+    }
+
+    /**
+     * 注册一个事件类型, 使用默认的解码器
+     * 实体是{@link CodedEntity}时, 解码器持有自己的{@link StringDictionary}, 同一索引的记录共享编码和描述的实例
+     * @param indexName 索引名
+     * @param classType 实体类型
+     * @param orderKey 过滤时间范围的key, 同时也是排序的key
+     * @param timeline 是否属于用户的时间线, 即是否包含在全部类型事件的查询中
+     * @param aliases 索引的别名
+     */
+    public static <T> Entry<T> register(String indexName, Class<T> classType, String orderKey, boolean timeline, String... aliases) {
+        return register(indexName, classType, orderKey, timeline, defaultDecoder(classType), aliases);
+    }
+
+    private static <T> HitDecoder<T> defaultDecoder(Class<T> classType) {
+        if (!CodedEntity.class.isAssignableFrom(classType))
+            return hit -> SourceDecoder.decode(hit, classType);
+        StringDictionary dictionary = new StringDictionary(StringDictionary.DEFAULT_CAPACITY);
+        return hit -> SourceDecoder.decode(hit, classType, dictionary);
+    }
+
+    /**
+     * 注册一个事件类型
+     * @param decoder 将命中记录解析为实体的解码器
+     * @see #register(String, Class, String, boolean, String...)
+     */
+    public static synchronized <T> Entry<T> register(String indexName, Class<T> classType, String orderKey, boolean timeline,
+                                                     HitDecoder<T> decoder, String... aliases) {
+        Entry<T> entry = new Entry<>(indexName, classType, orderKey, timeline, decoder);
+        Entry<?> previous = ENTRIES.put(indexName, entry);
+        for (String alias : aliases)
+            ENTRIES.put(alias, entry);
+        // 重新注册同一个索引时替换原来的类型, 原来的别名如果没有被重新注册则一并移除; indexName只是其他类型的别名时不影响该类型
+        if (previous != null && previous.getIndexName().equals(indexName)) {
+            REGISTERED.remove(previous);
+            ENTRIES.values().removeIf(existing -> existing == previous);
+        }
+        REGISTERED.add(entry);
+        return entry;
+    }
+
+    /**
+     * @param indexName 索引名或别名
+     * @return 事件类型, 未注册时返回null
+     */
+    public static Entry<?> get(String indexName) {
+        return indexName == null ? null : ENTRIES.get(indexName);
+    }
+
+    /**
+     * @param classType 实体类型
+     * @return 最先注册的、实体类型为classType的事件类型, 未注册时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> Entry<T> forClass(Class<T> classType) {
+        for (Entry<?> entry : REGISTERED)
+            if (entry.getClassType() == classType)
+                return (Entry<T>) entry;
+        return null;
+    }
+
+    /**
+     * @return 属于用户时间线的全部事件类型, 按照注册顺序排列
+     */
+    public static synchronized List<Entry<?>> timelineTypes() {
+        List<Entry<?>> types = new ArrayList<>();
+        for (Entry<?> entry : REGISTERED)
+            if (entry.isTimeline())
+                types.add(entry);
+        return types;
+    }
+
+    /**
+     * @param indexName 索引名或别名
+     * @return 实体类型, 未注册时返回null
+     */
+    public static Class<?> getEventClass(String indexName) {
+        Entry<?> entry = get(indexName);
+        return entry == null ? null : entry.getClassType();
+    }
+
+    /**
+     * @param indexName 索引名或别名
+     * @return 排序键, 未注册时返回null
+     */
+    public static String getOrderKey(String indexName) {
+        Entry<?> entry = get(indexName);
+        return entry == null ? null : entry.getOrderKey();
+    }
+
+    /**
+     * 获取某个索引的解码器, 索引注册的实体类型与classType一致时使用注册的解码器, 否则直接按classType解析
+     * @param indexName 索引名
+     * @param classType 实体类型
+     * @return 解码器
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> HitDecoder<T> decoderFor(String indexName, Class<T> classType) {
+        Entry<?> entry = get(indexName);
+        if (entry != null && entry.getClassType() == classType)
+            return (HitDecoder<T>) entry.getDecoder();
+        return hit -> SourceDecoder.decode(hit, classType);
+    }
+
+    /**
+     * 将命中记录解析为实体
+     */
+    public interface HitDecoder<T> {
+        T decode(SearchHit hit);
+    }
+
+    /**
+     * 一个已注册的事件类型
+     */
+    public static final class Entry<T> {
+        private final String indexName;
+        private final Class<T> classType;
+        private final String orderKey;
+        private final boolean timeline;
+        private final HitDecoder<T> decoder;
+
+        private Entry(String indexName, Class<T> classType, String orderKey, boolean timeline, HitDecoder<T> decoder) {
+            this.indexName = indexName;
+            this.classType = classType;
+            this.orderKey = orderKey;
+            this.timeline = timeline;
+            this.decoder = decoder;
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        public Class<T> getClassType() {
+            return classType;
+        }
+
+        public String getOrderKey() {
+            return orderKey;
+        }
+
+        public boolean isTimeline() {
+            return timeline;
+        }
+
+        public HitDecoder<T> getDecoder() {
+            return decoder;
+        }
+
+        /**
+         * 将命中记录解析为事件
+         * @param hit 命中记录
+         * @param dateMillis 事件日期的毫秒时间戳, 一般取自排序值
+         * @return 事件
+         */
+        public Event<T> toEvent(SearchHit hit, long dateMillis) {
+            return new Event<>(hit.getId(), decoder.decode(hit), dateMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "indexName='" + indexName + '\'' +
+                    ", classType=" + classType +
+                    ", orderKey='" + orderKey + '\'' +
+                    ", timeline=" + timeline +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import java.util.*;
+
+/**
+ * 按列存储的Observation体征时间序列
+ * 所有观测的时间存放在一个long[]中, 每种体征的数值各存放在一个double[]中, 下标相同的元素属于同一次观测,
+ * 缺失的数值用BitSet标记(对应位置的数值为NaN), 绘图或计算趋势时不需要遍历大量的Event对象
+ * 序列构建后不可修改, 可以在多个线程之间共享; 返回数组的getter每次返回副本, 逐个读取时使用按下标读取的方法
+ */
+public final class ObservationSeries {
+
+    /** Observation中全部的体征名称, 即signs下的字段名 */
+    public static final List<String> SIGN_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "creatinine", "body_mass_index", "body_weight", "systolic_blood_pressure", "calcium",
+            "low_density_lipoprotein_cholesterol", "triglycerides", "glucose", "microalbumin_creatinine_ratio",
+            "urea_uitrogen", "carbon_dioxide", "hemoglobin_A1c_or_hemoglobin_total_in_blood", "chloride",
+            "estimated_glomerular_filtration_rate", "sodium", "high_density_lipoprotein_cholesterol",
+            "body_height", "potassium", "total_cholesterol"));
+
+    private final int size;
+    private final long[] timestamps;
+    private final Map<String, double[]> values;
+    private final Map<String, BitSet> missing;
+
+    private ObservationSeries(int size, long[] timestamps, Map<String, double[]> values, Map<String, BitSet> missing) {
+        this.size = size;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.missing = missing;
+    }
+
+    /**
+     * @return 观测的次数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 序列中包含的体征名称
+     */
+    public Set<String> getSignNames() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    /**
+     * @return 每次观测的时间, 毫秒时间戳, 按时间升序排列; 返回副本
+     */
+    public long[] getTimestamps() {
+        return timestamps.clone();
+    }
+
+    /**
+     * @return 第index次观测的时间, 毫秒时间戳
+     */
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * @param signName 体征名称, 如glucose
+     * @return 该体征每次观测的数值, 缺失的数值为NaN; 返回副本
+     */
+    public double[] getValues(String signName) {
+        return column(signName).clone();
+    }
+
+    /**
+     * @return 第index次观测该体征的数值, 缺失时为NaN
+     */
+    public double getValue(String signName, int index) {
+        return column(signName)[index];
+    }
+
+    /**
+     * @param signName 体征名称, 如glucose
+     * @return 该体征缺失数值的位置; 返回副本
+     */
+    public BitSet getMissing(String signName) {
+        return (BitSet) missingColumn(signName).clone();
+    }
+
+    /**
+     * @return 第index次观测是否缺少该体征的数值
+     */
+    public boolean isMissing(String signName, int index) {
+        return missingColumn(signName).get(index);
+    }
+
+    private double[] column(String signName) {
+        double[] signValues = values.get(signName);
+        if (signValues == null)
+            throw new IllegalArgumentException("序列中不包含体征" + signName);
+        return signValues;
+    }
+
+    private BitSet missingColumn(String signName) {
+        BitSet signMissing = missing.get(signName);
+        if (signMissing == null)
+            throw new IllegalArgumentException("序列中不包含体征" + signName);
+        return signMissing;
+    }
+
+    @Override
+    public String toString() {
+        return "ObservationSeries{" +
+                "size=" + size +
+                ", signNames=" + values.keySet() +
+                '}';
+    }
+
+    /**
+     * 逐条追加观测构建序列, 数组按需倍增
+     */
+    public static class Builder {
+        private final String[] signNames;
+        private int size;
+        private long[] timestamps = new long[16];
+        private double[][] values;
+        private BitSet[] missing;
+
+        /**
+         * @param signNames 需要的体征名称, 为空时包含全部体征
+         */
+        public Builder(String... signNames) {
+            this.signNames = signNames == null || signNames.length == 0
+                    ? SIGN_NAMES.toArray(new String[SIGN_NAMES.size()])
+                    : signNames;
+            this.values = new double[this.signNames.length][timestamps.length];
+            this.missing = new BitSet[this.signNames.length];
+            for (int i = 0; i < missing.length; i++)
+                missing[i] = new BitSet();
+        }
+
+        /**
+         * @return 构建序列需要的体征名称
+         */
+        public String[] getSignNames() {
+            return signNames;
+        }
+
+        /**
+         * 追加一次观测
+         * @param timestamp 观测时间, 毫秒时间戳
+         * @param signs 体征名称到数值的映射, 即一条observation记录的signs, 可以为null
+         */
+        public void add(long timestamp, Map<String, Object> signs) {
+            if (size == timestamps.length)
+                grow();
+            timestamps[size] = timestamp;
+            for (int i = 0; i < signNames.length; i++) {
+                Object value = signs == null ? null : signs.get(signNames[i]);
+                if (value instanceof Number) {
+                    values[i][size] = ((Number) value).doubleValue();
+                } else {
+                    values[i][size] = Double.NaN;
+                    missing[i].set(size);
+                }
+            }
+            size++;
+        }
+
+        public ObservationSeries build() {
+            Map<String, double[]> columns = new LinkedHashMap<>();
+            Map<String, BitSet> missingColumns = new LinkedHashMap<>();
+            for (int i = 0; i < signNames.length; i++) {
+                columns.put(signNames[i], Arrays.copyOf(values[i], size));
+                // 复制一份, 构建之后继续追加观测不会修改已经构建的序列
+                missingColumns.put(signNames[i], (BitSet) missing[i].clone());
+            }
+            return new ObservationSeries(size, Arrays.copyOf(timestamps, size), columns, missingColumns);
+        }
+
+        private void grow() {
+            int capacity = timestamps.length * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            for (int i = 0; i < values.length; i++)
+                values[i] = Arrays.copyOf(values[i], capacity);
+        }
+    }
+}
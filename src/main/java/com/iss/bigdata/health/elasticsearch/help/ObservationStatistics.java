@@ -0,0 +1,169 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import java.util.*;
+
+/**
+ * Observation体征按时间区间聚合的统计结果, 由Elasticsearch服务端的date_histogram聚合计算得到
+ * 每个区间包含该区间内每种体征的数量、最小值、最大值、平均值以及指定的百分位数
+ */
+public class ObservationStatistics {
+    private final String interval;
+    private final List<Bucket> buckets;
+
+    public ObservationStatistics(String interval, List<Bucket> buckets) {
+        this.interval = interval;
+        this.buckets = Collections.unmodifiableList(buckets);
+    }
+
+    /**
+     * @return 聚合的时间区间, 如1M、1y
+     */
+    public String getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return 按时间升序排列的区间
+     */
+    public List<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    @Override
+    public String toString() {
+        return "ObservationStatistics{" +
+                "interval='" + interval + '\'' +
+                ", buckets=" + buckets +
+                '}';
+    }
+
+    /**
+     * 一个时间区间的统计结果
+     */
+    public static class Bucket {
+        private final long timestamp;
+        private final long docCount;
+        private final Map<String, SignStatistics> signs;
+
+        public Bucket(long timestamp, long docCount, Map<String, SignStatistics> signs) {
+            this.timestamp = timestamp;
+            this.docCount = docCount;
+            this.signs = Collections.unmodifiableMap(signs);
+        }
+
+        /**
+         * @return 区间的开始时间, 毫秒时间戳
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return 区间内的观测次数
+         */
+        public long getDocCount() {
+            return docCount;
+        }
+
+        /**
+         * @return (体征名称, 统计结果)
+         */
+        public Map<String, SignStatistics> getSigns() {
+            return signs;
+        }
+
+        /**
+         * @param signName 体征名称, 如glucose
+         * @return 该体征的统计结果
+         */
+        public SignStatistics getSign(String signName) {
+            SignStatistics statistics = signs.get(signName);
+            if (statistics == null)
+                throw new IllegalArgumentException("统计结果中不包含体征" + signName);
+            return statistics;
+        }
+
+        @Override
+        public String toString() {
+            return "Bucket{" +
+                    "timestamp=" + timestamp +
+                    ", docCount=" + docCount +
+                    ", signs=" + signs +
+                    '}';
+        }
+    }
+
+    /**
+     * 一种体征在一个时间区间内的统计结果, 区间内没有该体征的数值时count为0, 其余统计值为NaN
+     */
+    public static class SignStatistics {
+        private final long count;
+        private final double min;
+        private final double max;
+        private final double avg;
+        private final double[] percents;
+        private final double[] percentiles;
+
+        public SignStatistics(long count, double min, double max, double avg, double[] percents, double[] percentiles) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+            this.percents = percents;
+            this.percentiles = percentiles;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAvg() {
+            return avg;
+        }
+
+        /**
+         * @return 请求的百分位, 如50、95
+         */
+        public double[] getPercents() {
+            return percents;
+        }
+
+        /**
+         * @return 与getPercents()一一对应的百分位数
+         */
+        public double[] getPercentiles() {
+            return percentiles;
+        }
+
+        /**
+         * @param percent 请求过的百分位, 如95
+         * @return 对应的百分位数
+         */
+        public double getPercentile(double percent) {
+            for (int i = 0; i < percents.length; i++)
+                if (percents[i] == percent)
+                    return percentiles[i];
+            throw new IllegalArgumentException("没有请求百分位" + percent);
+        }
+
+        @Override
+        public String toString() {
+            return "SignStatistics{" +
+                    "count=" + count +
+                    ", min=" + min +
+                    ", max=" + max +
+                    ", avg=" + avg +
+                    ", percents=" + Arrays.toString(percents) +
+                    ", percentiles=" + Arrays.toString(percentiles) +
+                    '}';
+        }
+    }
+}
@@ -2,7 +2,9 @@ package com.iss.bigdata.health.elasticsearch.help;
 
 import com.iss.bigdata.health.elasticsearch.entity.Allergy;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Objects;
 
 /**
  * Created by dujijun on 2018/1/4.
@@ -16,6 +18,10 @@ public class QueryObject<T>{
     private String filterNameAndOrderKey;
     private Date start;
     private Date end;
+    /** 需要返回的_source字段, 为空时返回全部字段 */
+    private String[] includes;
+    /** 不需要返回的_source字段 */
+    private String[] excludes;
 
     public QueryObject(String userId, String indexName, String type, Class<T> classType, Date start, Date end) {
         this.userId = userId;
@@ -27,6 +33,18 @@ public class QueryObject<T>{
         this.end = end;
     }
 
+    /**
+     * 只获取实体的部分字段, 未获取的字段在实体中为默认值
+     * @param includes 需要返回的_source字段, 支持通配符, 如signs.*
+     * @param excludes 不需要返回的_source字段, 如description
+     */
+    public QueryObject(String userId, String indexName, String type, Class<T> classType, Date start, Date end,
+                       String[] includes, String[] excludes) {
+        this(userId, indexName, type, classType, start, end);
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
     public QueryObject() {
     }
 
@@ -86,24 +104,62 @@ public class QueryObject<T>{
         this.end = end;
     }
 
+    public String[] getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(String[] includes) {
+        this.includes = includes;
+    }
+
+    public String[] getExcludes() {
+        return excludes;
+    }
+
+    public void setExcludes(String[] excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * @return 是否只获取部分_source字段
+     */
+    public boolean hasProjection() {
+        return (includes != null && includes.length > 0) || (excludes != null && excludes.length > 0);
+    }
+
     /**
      * 根据
      * @return
      */
     private String getKeyTypeFromIndexName(){
-        switch (this.indexName){
-            case "medications":
-            case "conditions":
-            case "allergies":
-            case "careplans":
-                return "start";
-            case "observation":
-            case "immunizations":
-            case "encounters":
-                return "date";
-            default:
-                return null;
-        }
+        return EventTypeRegistry.getOrderKey(this.indexName);
+    }
+
+    /**
+     * 两个查询的条件完全相同时相等, 可以作为查询结果的key
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        QueryObject<?> that = (QueryObject<?>) o;
+        return Objects.equals(userId, that.userId) &&
+                Objects.equals(indexName, that.indexName) &&
+                Objects.equals(type, that.type) &&
+                Objects.equals(classType, that.classType) &&
+                Objects.equals(filterNameAndOrderKey, that.filterNameAndOrderKey) &&
+                Objects.equals(start, that.start) &&
+                Objects.equals(end, that.end) &&
+                Arrays.equals(includes, that.includes) &&
+                Arrays.equals(excludes, that.excludes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(userId, indexName, type, classType, filterNameAndOrderKey, start, end);
+        result = 31 * result + Arrays.hashCode(includes);
+        result = 31 * result + Arrays.hashCode(excludes);
+        return result;
     }
 
     @Override
@@ -116,6 +172,8 @@ public class QueryObject<T>{
                 ", filterNameAndOrderKey='" + filterNameAndOrderKey + '\'' +
                 ", start=" + start +
                 ", end=" + end +
+                ", includes=" + Arrays.toString(includes) +
+                ", excludes=" + Arrays.toString(excludes) +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.iss.bigdata.health.elasticsearch.entity.CodedEntity;
+import com.iss.bigdata.health.elasticsearch.entity.EpochMillis;
+import com.iss.bigdata.health.elasticsearch.entity.StringDictionary;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * 命中记录的解码工具
+ * 直接从_source的原始字节中一次性解析出实体对象, 不再生成中间的String; 日期则直接取自排序值
+ */
+public class SourceDecoder {
+
+    private SourceDecoder() {
+    }
+
+    /**
+     * 将命中记录的_source直接解析为实体对象
+     * @param hit 命中记录
+     * @param classType 实体的Class类型
+     * @return 实体对象, 当记录没有_source时返回null
+     */
+    public static <T> T decode(SearchHit hit, Class<T> classType) {
+        BytesReference source = hit.getSourceRef();
+        if (source == null)
+            return null;
+        BytesRef bytes = source.toBytesRef();
+        return JSON.parseObject(bytes.bytes, bytes.offset, bytes.length, StandardCharsets.UTF_8, classType);
+    }
+
+    /**
+     * 将命中记录的_source直接解析为实体对象, 实体是{@link CodedEntity}时把编码和描述换成字典中的共享实例
+     * @param hit 命中记录
+     * @param classType 实体的Class类型
+     * @param dictionary 字典, 一般由解码器持有
+     * @return 实体对象, 当记录没有_source时返回null
+     */
+    public static <T> T decode(SearchHit hit, Class<T> classType, StringDictionary dictionary) {
+        T entity = decode(hit, classType);
+        if (entity instanceof CodedEntity)
+            ((CodedEntity) entity).internCodes(dictionary);
+        return entity;
+    }
+
+    /**
+     * 将命中记录的_source直接解析为JSONObject, 用于不需要实体对象的场景
+     * @param hit 命中记录
+     * @return JSONObject, 当记录没有_source时返回null
+     */
+    public static JSONObject decodeObject(SearchHit hit) {
+        return decode(hit, JSONObject.class);
+    }
+
+    /**
+     * 从命中记录的排序值中读取日期
+     * Elasticsearch对日期类型和long类型的排序键均返回毫秒时间戳, 无需再回到_source中解析
+     * @param hit 命中记录
+     * @param sortIndex 日期字段在排序键中的位置
+     * @return 日期, 记录缺少该字段时返回null
+     */
+    public static Date readSortDate(SearchHit hit, int sortIndex) {
+        return EpochMillis.toDate(readSortMillis(hit, sortIndex));
+    }
+
+    /**
+     * 从命中记录的排序值中读取毫秒时间戳, 不创建Date对象
+     * @param hit 命中记录
+     * @param sortIndex 日期字段在排序键中的位置
+     * @return 毫秒时间戳, 记录缺少该字段时返回{@link EpochMillis#NONE}
+     */
+    public static long readSortMillis(SearchHit hit, int sortIndex) {
+        Object[] sortValues = hit.getSortValues();
+        if (sortIndex >= sortValues.length || !(sortValues[sortIndex] instanceof Number))
+            return EpochMillis.NONE;
+        long millis = ((Number) sortValues[sortIndex]).longValue();
+        // 缺失该字段的记录会以long的最大或最小值参与排序
+        if (millis == Long.MAX_VALUE || millis == Long.MIN_VALUE)
+            return EpochMillis.NONE;
+        return millis;
+    }
+}
@@ -0,0 +1,207 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import com.iss.bigdata.health.elasticsearch.entity.EpochMillis;
+import com.iss.bigdata.health.elasticsearch.entity.Event;
+
+import java.util.*;
+
+/**
+ * 用户全部类型事件的时间线视图
+ * EventMap中每种事件的列表已经按照日期排好序, 时间线对这些列表做惰性的多路归并, 不复制也不重新排序,
+ * 每取一个事件只需要比较各列表当前的第一个事件
+ * 通过{@link Cursor}可以分页读取, 并且可以从{@link Cursor#getPositions()}记录的位置继续读取
+ * 注意：时间线直接引用EventMap中的列表, 读取期间不能修改这些列表
+ */
+public class Timeline implements Iterable<Timeline.Entry> {
+    private final String[] types;
+    private final List<?>[] lists;
+    private final boolean ascending;
+    private final int size;
+
+    /**
+     * 按照日期从新到旧排列, 即服务返回的默认顺序
+     * @param eventMap 每种事件的列表都按照日期降序排列
+     */
+    public Timeline(EventMap eventMap) {
+        this(eventMap, false);
+    }
+
+    /**
+     * @param eventMap 事件映射, 每种事件的列表都已按照ascending指定的顺序排列
+     * @param ascending 列表是否按照日期升序排列
+     */
+    public Timeline(EventMap eventMap, boolean ascending) {
+        // 按照类型名排列, 日期相同的事件之间顺序固定
+        this.types = eventMap.keySet().toArray(new String[eventMap.size()]);
+        Arrays.sort(types);
+        this.lists = new List<?>[types.length];
+        int total = 0;
+        for (int i = 0; i < types.length; i++) {
+            lists[i] = eventMap.getEventList(Object.class, types[i]);
+            total += lists[i] == null ? 0 : lists[i].size();
+        }
+        this.ascending = ascending;
+        this.size = total;
+    }
+
+    /**
+     * @return 全部事件的数量
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 从头开始读取的游标
+     */
+    public Cursor cursor() {
+        return new Cursor(new int[lists.length]);
+    }
+
+    /**
+     * 从之前记录的位置继续读取
+     * @param positions 之前的游标{@link Cursor#getPositions()}返回的位置
+     * @return 游标
+     */
+    public Cursor cursor(int[] positions) {
+        if (positions.length != lists.length)
+            throw new IllegalArgumentException("游标位置与时间线的事件类型数不一致");
+        return new Cursor(positions.clone());
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        Cursor cursor = cursor();
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                return cursor.next();
+            }
+        };
+    }
+
+    /**
+     * @return 日期为millis的事件是否应当排在日期为other的事件之前
+     */
+    private boolean before(long millis, long other) {
+        // 与Elasticsearch一致, 没有日期的事件总是排在最后
+        if (millis == EpochMillis.NONE)
+            return false;
+        if (other == EpochMillis.NONE)
+            return true;
+        return ascending ? millis < other : millis > other;
+    }
+
+    /**
+     * 时间线上的读取位置, 每种事件各有一个位置
+     */
+    public class Cursor {
+        private final int[] positions;
+        private int position;
+
+        private Cursor(int[] positions) {
+            this.positions = positions;
+            for (int p : positions)
+                this.position += p;
+        }
+
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        /**
+         * @return 下一个事件
+         * @throws NoSuchElementException 已经读完时
+         */
+        public Entry next() {
+            int next = -1;
+            long nextMillis = EpochMillis.NONE;
+            for (int i = 0; i < lists.length; i++) {
+                if (lists[i] == null || positions[i] >= lists[i].size())
+                    continue;
+                long millis = ((Event<?>) lists[i].get(positions[i])).getDateMillis();
+                if (next < 0 || before(millis, nextMillis)) {
+                    next = i;
+                    nextMillis = millis;
+                }
+            }
+            if (next < 0)
+                throw new NoSuchElementException();
+
+            Event<?> event = (Event<?>) lists[next].get(positions[next]++);
+            position++;
+            return new Entry(types[next], event);
+        }
+
+        /**
+         * 读取一页事件
+         * @param pageSize 每页的大小
+         * @return 不超过pageSize个事件, 已经读完时返回空列表
+         */
+        public List<Entry> nextPage(int pageSize) {
+            List<Entry> page = new ArrayList<>(Math.min(pageSize, size - position));
+            while (page.size() < pageSize && hasNext())
+                page.add(next());
+            return page;
+        }
+
+        /**
+         * @return 已经读取的事件数
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @return 每种事件已经读取的数量, 可以传给{@link Timeline#cursor(int[])}继续读取
+         */
+        public int[] getPositions() {
+            return positions.clone();
+        }
+    }
+
+    /**
+     * 时间线上的一个事件
+     */
+    public static class Entry {
+        private final String type;
+        private final Event<?> event;
+
+        public Entry(String type, Event<?> event) {
+            this.type = type;
+            this.event = event;
+        }
+
+        /**
+         * @return 事件类型, 即EventMap中的key, 如observation
+         */
+        public String getType() {
+            return type;
+        }
+
+        public Event<?> getEvent() {
+            return event;
+        }
+
+        public Date getDate() {
+            return event.getDate();
+        }
+
+        public long getDateMillis() {
+            return event.getDateMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "type='" + type + '\'' +
+                    ", event=" + event +
+                    '}';
+        }
+    }
+}
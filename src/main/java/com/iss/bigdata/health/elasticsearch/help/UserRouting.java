@@ -0,0 +1,47 @@
+package com.iss.bigdata.health.elasticsearch.help;
+
+import com.alibaba.fastjson.JSON;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.util.Map;
+
+/**
+ * 按照user_id路由的写入工具
+ * Elasticsearch默认以_id决定记录所在的分片, 同一个用户的记录分散在所有分片上, 查询只能发送到全部分片;
+ * 以user_id作为路由值写入后, 同一个用户的全部记录都在同一个分片上,
+ * 查询服务开启{@code setRoutingByUserId(true)}后每个用户的查询只访问这一个分片
+ * 注意：已有的索引需要按照这种方式重新写入后才能开启路由查询, 建议在mapping中设置"_routing": {"required": true}
+ */
+public class UserRouting {
+    /** 作为路由值的字段 */
+    public static final String ROUTING_FIELD = "user_id";
+
+    private UserRouting() {
+    }
+
+    /**
+     * 构建以记录的user_id作为路由值的写入请求
+     * @param indexName 索引名, 如observation
+     * @param type 索引类型, 一般统一为synthea
+     * @param id 记录的id, 为null时由Elasticsearch生成
+     * @param source 记录内容, 必须包含user_id
+     * @return 写入请求
+     */
+    public static IndexRequest indexRequest(String indexName, String type, String id, Map<String, ?> source) {
+        return new IndexRequest(indexName, type, id)
+                .routing(routing(source))
+                .source(JSON.toJSONString(source), XContentType.JSON);
+    }
+
+    /**
+     * @param source 记录内容
+     * @return 记录的路由值, 即user_id
+     */
+    public static String routing(Map<String, ?> source) {
+        Object userId = source == null ? null : source.get(ROUTING_FIELD);
+        if (userId == null || userId.toString().isEmpty())
+            throw new RuntimeException("记录中没有" + ROUTING_FIELD + ", 无法确定路由值");
+        return userId.toString();
+    }
+}
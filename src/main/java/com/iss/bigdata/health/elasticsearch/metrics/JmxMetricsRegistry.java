@@ -0,0 +1,58 @@
+package com.iss.bigdata.health.elasticsearch.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 将指标注册为MXBean的注册表, 可以通过JConsole或VisualVM查看
+ * ObjectName为com.iss.bigdata.health.elasticsearch:type=ElasticSearchService,operation=服务方法名,index=索引
+ */
+public class JmxMetricsRegistry extends SnapshotMetricsRegistry {
+    public static final String DOMAIN = "com.iss.bigdata.health.elasticsearch";
+
+    private final MBeanServer mBeanServer;
+
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsRegistry(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    protected void onCreated(OperationMetrics operationMetrics) {
+        try {
+            ObjectName name = objectName(operationMetrics.getOperation(), operationMetrics.getIndex());
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(operationMetrics, name);
+        } catch (JMException e) {
+            // 注册失败不影响查询, 指标仍然可以通过snapshot获取
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 注销全部MXBean并清空指标
+     */
+    @Override
+    public void reset() {
+        for (OperationMetrics operationMetrics : snapshot()) {
+            try {
+                ObjectName name = objectName(operationMetrics.getOperation(), operationMetrics.getIndex());
+                if (mBeanServer.isRegistered(name))
+                    mBeanServer.unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        super.reset();
+    }
+
+    static ObjectName objectName(String operation, String index) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=ElasticSearchService"
+                + ",operation=" + ObjectName.quote(operation)
+                + ",index=" + ObjectName.quote(index));
+    }
+}
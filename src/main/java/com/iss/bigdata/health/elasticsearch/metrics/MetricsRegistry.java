@@ -0,0 +1,43 @@
+package com.iss.bigdata.health.elasticsearch.metrics;
+
+/**
+ * 查询指标的记录方式, 服务实现每完成一次网络往返记录一次请求, 每处理完一个查询(分页查询的一页)记录一次查询
+ * 单个查询的请求与查询记在同一个索引下; 通过_msearch一起发送的多个查询, 请求记在{@link #MULTI_SEARCH_INDEX}下,
+ * 每个子查询记在各自的索引下
+ * 默认不记录任何指标, 需要时通过服务的setMetricsRegistry设置{@link SnapshotMetricsRegistry}或{@link JmxMetricsRegistry}
+ * 注意：实现必须是线程安全的, 并且不能阻塞, 它在查询线程或异步客户端的回调线程中被调用
+ */
+public interface MetricsRegistry {
+    /** 通过_msearch发送的一轮请求所记录的索引名 */
+    String MULTI_SEARCH_INDEX = "_msearch";
+
+    /** 不记录任何指标 */
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public void recordRequest(String operation, String index, long latencyNanos) {
+        }
+
+        @Override
+        public void recordSearch(String operation, String index, long tookMillis, long hits, long sourceBytes, long decodeNanos) {
+        }
+    };
+
+    /**
+     * 记录一次网络往返
+     * @param operation 服务方法名, 如getAllTypeEventByUserId
+     * @param index 查询的索引, 多个索引之间用逗号分隔; 通过_msearch发送时为{@link #MULTI_SEARCH_INDEX}
+     * @param latencyNanos 从发送请求到收到响应的时间
+     */
+    void recordRequest(String operation, String index, long latencyNanos);
+
+    /**
+     * 记录一个查询, 通过_msearch发送时每个子查询记录一次
+     * @param operation 服务方法名, 如getAllTypeEventByUserId
+     * @param index 查询的索引, 多个索引之间用逗号分隔
+     * @param tookMillis Elasticsearch返回的took, 即服务端的执行时间
+     * @param hits 本次返回的命中记录数
+     * @param sourceBytes 本次返回的命中记录_source的字节数, 不包括元数据、排序值与响应的其余部分
+     * @param decodeNanos 将命中记录解析为事件所用的时间
+     */
+    void recordSearch(String operation, String index, long tookMillis, long hits, long sourceBytes, long decodeNanos);
+}
@@ -0,0 +1,138 @@
+package com.iss.bigdata.health.elasticsearch.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 某个服务方法在某个索引上的累计查询指标
+ * 比较延迟、took与解码时间可以判断时间花在网络、Elasticsearch还是fastjson上:
+ * 延迟减去took近似为网络传输与客户端解析响应的时间
+ * 延迟按照网络往返记录, took、命中数与解码时间按照查询记录; 通过_msearch发送时两者记在不同的索引下, 见{@link MetricsRegistry}
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+    private final String operation;
+    private final String index;
+    private final LatencyHistogram latencyNanos = new LatencyHistogram();
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder tookMillis = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder sourceBytes = new LongAdder();
+    private final LatencyHistogram decodeNanos = new LatencyHistogram();
+
+    public OperationMetrics(String operation, String index) {
+        this.operation = operation;
+        this.index = index;
+    }
+
+    void recordRequest(long latencyNanos) {
+        this.latencyNanos.record(latencyNanos);
+    }
+
+    void recordSearch(long tookMillis, long hits, long sourceBytes, long decodeNanos) {
+        this.searches.increment();
+        this.tookMillis.add(tookMillis);
+        this.hits.add(hits);
+        this.sourceBytes.add(sourceBytes);
+        this.decodeNanos.record(decodeNanos);
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * @return 查询延迟的直方图, 单位为纳秒
+     */
+    public LatencyHistogram getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @return 解码时间的直方图, 单位为纳秒
+     */
+    public LatencyHistogram getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    @Override
+    public long getRequests() {
+        return latencyNanos.getCount();
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return toMillis(latencyNanos.getMean());
+    }
+
+    @Override
+    public double getLatencyMillis50() {
+        return toMillis(latencyNanos.getPercentile(50));
+    }
+
+    @Override
+    public double getLatencyMillis95() {
+        return toMillis(latencyNanos.getPercentile(95));
+    }
+
+    @Override
+    public double getLatencyMillis99() {
+        return toMillis(latencyNanos.getPercentile(99));
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return toMillis(latencyNanos.getMax());
+    }
+
+    @Override
+    public double getMeanTookMillis() {
+        long searches = getSearches();
+        return searches == 0 ? 0 : (double) tookMillis.sum() / searches;
+    }
+
+    @Override
+    public double getMeanDecodeMillis() {
+        return toMillis(decodeNanos.getMean());
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getSourceBytes() {
+        return sourceBytes.sum();
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return "OperationMetrics{" +
+                "operation='" + operation + '\'' +
+                ", index='" + index + '\'' +
+                ", requests=" + getRequests() +
+                ", searches=" + getSearches() +
+                ", meanLatencyMillis=" + getMeanLatencyMillis() +
+                ", latencyMillis99=" + getLatencyMillis99() +
+                ", meanTookMillis=" + getMeanTookMillis() +
+                ", meanDecodeMillis=" + getMeanDecodeMillis() +
+                ", hits=" + getHits() +
+                ", sourceBytes=" + getSourceBytes() +
+                '}';
+    }
+}
@@ -0,0 +1,38 @@
+package com.iss.bigdata.health.elasticsearch.metrics;
+
+/**
+ * 通过JMX暴露的某个服务方法在某个索引上的查询指标, 时间单位均为毫秒
+ */
+public interface OperationMetricsMXBean {
+
+    String getOperation();
+
+    String getIndex();
+
+    /** 网络往返次数 */
+    long getRequests();
+
+    /** 查询数, 通过_msearch发送时每个子查询各计一次 */
+    long getSearches();
+
+    double getMeanLatencyMillis();
+
+    double getLatencyMillis50();
+
+    double getLatencyMillis95();
+
+    double getLatencyMillis99();
+
+    double getMaxLatencyMillis();
+
+    /** Elasticsearch服务端执行时间的平均值 */
+    double getMeanTookMillis();
+
+    /** 解析命中记录所用时间的平均值 */
+    double getMeanDecodeMillis();
+
+    long getHits();
+
+    /** 命中记录_source的字节数之和 */
+    long getSourceBytes();
+}
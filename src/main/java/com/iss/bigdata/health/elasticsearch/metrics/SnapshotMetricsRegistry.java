@@ -0,0 +1,66 @@
+package com.iss.bigdata.health.elasticsearch.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 在内存中累计指标的注册表, 通过{@link #snapshot()}获取每个服务方法在每个索引上的指标
+ */
+public class SnapshotMetricsRegistry implements MetricsRegistry {
+    /** (服务方法名/索引, 指标) */
+    private final ConcurrentMap<String, OperationMetrics> metrics = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordRequest(String operation, String index, long latencyNanos) {
+        metrics(operation, index).recordRequest(latencyNanos);
+    }
+
+    @Override
+    public void recordSearch(String operation, String index, long tookMillis, long hits, long sourceBytes, long decodeNanos) {
+        metrics(operation, index).recordSearch(tookMillis, hits, sourceBytes, decodeNanos);
+    }
+
+    private OperationMetrics metrics(String operation, String index) {
+        String key = operation + "/" + index;
+        OperationMetrics operationMetrics = metrics.get(key);
+        if (operationMetrics == null) {
+            OperationMetrics created = new OperationMetrics(operation, index);
+            operationMetrics = metrics.putIfAbsent(key, created);
+            if (operationMetrics == null) {
+                operationMetrics = created;
+                onCreated(created);
+            }
+        }
+        return operationMetrics;
+    }
+
+    /**
+     * 第一次记录某个服务方法在某个索引上的查询时调用
+     * @param operationMetrics 新建的指标
+     */
+    protected void onCreated(OperationMetrics operationMetrics) {
+    }
+
+    /**
+     * @return 当前全部的指标, 指标对象会继续累计
+     */
+    public List<OperationMetrics> snapshot() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    /**
+     * @return 某个服务方法在某个索引上的指标, 没有记录时返回null
+     */
+    public OperationMetrics get(String operation, String index) {
+        return metrics.get(operation + "/" + index);
+    }
+
+    /**
+     * 清空全部指标
+     */
+    public void reset() {
+        metrics.clear();
+    }
+}
@@ -0,0 +1,165 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import org.elasticsearch.search.sort.SortOrder;
+import org.reactivestreams.Publisher;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * {@link ElasticSearchService}的异步版本, 所有方法立即返回, 查询结果通过CompletableFuture获取
+ * 查询失败时Future以RuntimeException异常结束
+ */
+public interface AsyncElasticSearchService {
+    CompletableFuture<EventMap> getAllTypeEventByUserId(String userId, Date start, Date end);
+
+    /**
+     * 批量查询多个用户的全部类型事件
+     * @return (用户id, 该用户的多事件映射)
+     */
+    CompletableFuture<Map<String, EventMap>> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end);
+
+    /**
+     * 组合查询, 查询多个类型的EventList
+     * @param queryRequests 查询请求列表
+     * @return 多事件映射
+     */
+    CompletableFuture<EventMap> getSeveralTypeEventsByUserId(List<QueryObject> queryRequests);
+
+    /**
+     * 多类型查询, 通过查询对象传入需要的查询与排序键, 得到所有的查询结果
+     * 注意：传入的List中的查询对象的排序键和参数中的排序键必须相同，否则会抛出异常
+     * @param queryRequests 查询请求对象
+     * @param orderKey 排序键
+     * @param order 排序方式
+     * @return 事件映射列表
+     */
+    CompletableFuture<EventMap> getMultiTypeEventsByUserId(List<QueryObject> queryRequests, String orderKey, SortOrder order);
+
+    /**
+     * 单类型查询, 通过UserId来获取相应的单类型事件列表
+     * @param userId 用户的id
+     * @param indexName 索引名——即事件名
+     * @param type 索引类型，一般统一为synthea
+     * @param classType 需要获取事件实体的Class的类型
+     * @param orderFields Map<String, SortOrder> (排序列名, 顺序)
+     * @param filterName 过滤域名称
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @return 事件列表
+     */
+    <T> CompletableFuture<List<Event<T>>> getSpecificEventsByUserId(String userId,
+                                                                    String indexName,
+                                                                    String type,
+                                                                    Class<T> classType,
+                                                                    Map<String, SortOrder> orderFields,
+                                                                    String filterName,
+                                                                    Date startDate,
+                                                                    Date endDate);
+
+    /**
+     * 单类型查询, 只获取实体的部分字段, 未获取的字段在实体中为默认值
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     */
+    <T> CompletableFuture<List<Event<T>>> getSpecificEventsByUserId(String userId,
+                                                                    String indexName,
+                                                                    String type,
+                                                                    Class<T> classType,
+                                                                    Map<String, SortOrder> orderFields,
+                                                                    String filterName,
+                                                                    Date startDate,
+                                                                    Date endDate,
+                                                                    String[] includes,
+                                                                    String[] excludes);
+
+    /**
+     * 流式的单类型查询, 逐页解析命中记录并立即交给sink, 不在内存中保存完整的事件列表
+     * sink在解析结果的decodeExecutor中依次调用, 不会并发调用
+     * @param sink 接收每个事件
+     * @return 交给sink的事件数量
+     */
+    <T> CompletableFuture<Long> streamSpecificEventsByUserId(String userId,
+                                                             String indexName,
+                                                             String type,
+                                                             Class<T> classType,
+                                                             Map<String, SortOrder> orderFields,
+                                                             String filterName,
+                                                             Date startDate,
+                                                             Date endDate,
+                                                             Consumer<? super Event<T>> sink);
+
+    /**
+     * 流式的单类型查询, 只获取实体的部分字段
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     */
+    <T> CompletableFuture<Long> streamSpecificEventsByUserId(String userId,
+                                                             String indexName,
+                                                             String type,
+                                                             Class<T> classType,
+                                                             Map<String, SortOrder> orderFields,
+                                                             String filterName,
+                                                             Date startDate,
+                                                             Date endDate,
+                                                             String[] includes,
+                                                             String[] excludes,
+                                                             Consumer<? super Event<T>> sink);
+
+    /**
+     * 以Reactive Streams发布者的形式返回单类型查询的事件, 订阅者请求事件时才拉取下一页
+     * 每次订阅都重新执行查询; 内存中最多缓存一页事件, 订阅者处理得慢时查询随之暂停
+     * @return 按照orderFields排序的事件发布者
+     * @see #getSpecificEventsByUserId(String, String, String, Class, Map, String, Date, Date)
+     */
+    <T> Publisher<Event<T>> publishSpecificEventsByUserId(String userId,
+                                                          String indexName,
+                                                          String type,
+                                                          Class<T> classType,
+                                                          Map<String, SortOrder> orderFields,
+                                                          String filterName,
+                                                          Date startDate,
+                                                          Date endDate);
+
+    /**
+     * 以Reactive Streams发布者的形式返回单类型查询的事件, 只获取实体的部分字段
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     */
+    <T> Publisher<Event<T>> publishSpecificEventsByUserId(String userId,
+                                                          String indexName,
+                                                          String type,
+                                                          Class<T> classType,
+                                                          Map<String, SortOrder> orderFields,
+                                                          String filterName,
+                                                          Date startDate,
+                                                          Date endDate,
+                                                          String[] includes,
+                                                          String[] excludes);
+
+    CompletableFuture<List<Event<Encounter>>> getEncounterEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<Immunization>>> getImmunizationEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<Observation>>> getObservationEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<Medication>>> getMedicationEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<CarePlan>>> getCarePlanEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<Allergy>>> getAllergyEventsByUserId(String userId, Date startDate, Date endDate);
+
+    CompletableFuture<List<Event<Condition>>> getConditionEventsByUserId(String userId, Date startDate, Date endDate);
+
+    /**
+     * 通过UserId来获取用户数据, 用户不存在时结果为null
+     */
+    CompletableFuture<Event<UserBasic>> getUserBasicByUserId(String userId);
+}
@@ -0,0 +1,374 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.client.ElasticSearchClientFactory;
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import com.iss.bigdata.health.elasticsearch.metrics.MetricsRegistry;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.sort.SortOrder;
+import org.reactivestreams.Publisher;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 基于RestHighLevelClient#searchAsync的异步查询服务
+ * 等待Elasticsearch响应时不占用任何线程, 响应到达后在decodeExecutor中解析结果, 避免阻塞客户端的IO线程
+ */
+public class AsyncElasticSearchServiceImpl implements AsyncElasticSearchService {
+    private RestHighLevelClient client;
+    private Executor decodeExecutor;
+    private MetricsRegistry metrics = MetricsRegistry.NOOP;
+    private boolean routingByUserId;
+
+    /**
+     * 使用{@link ElasticSearchClientFactory#getSharedClient()}共享的客户端, 在公共的ForkJoinPool中解析结果
+     */
+    public AsyncElasticSearchServiceImpl() {
+        this(ElasticSearchClientFactory.getSharedClient(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param client Elasticsearch客户端, 由调用者负责关闭
+     * @param decodeExecutor 解析查询结果所使用的线程池
+     */
+    public AsyncElasticSearchServiceImpl(RestHighLevelClient client, Executor decodeExecutor) {
+        this.client = client;
+        this.decodeExecutor = decodeExecutor;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    /**
+     * 设置记录查询指标的注册表, 默认不记录
+     * @param metrics 如{@link com.iss.bigdata.health.elasticsearch.metrics.SnapshotMetricsRegistry}
+     */
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        this.metrics = metrics == null ? MetricsRegistry.NOOP : metrics;
+    }
+
+    public boolean isRoutingByUserId() {
+        return routingByUserId;
+    }
+
+    /**
+     * 是否以user_id作为路由值查询, 默认不使用路由, 查询发送到索引的全部分片
+     * 开启后每个用户的查询只访问该用户所在的一个分片, 要求所有记录写入时都以user_id作为路由值
+     * @param routingByUserId 是否按照user_id路由
+     * @see com.iss.bigdata.health.elasticsearch.help.UserRouting
+     */
+    public void setRoutingByUserId(boolean routingByUserId) {
+        this.routingByUserId = routingByUserId;
+    }
+
+    @Override
+    public CompletableFuture<EventMap> getAllTypeEventByUserId(String userId, Date start, Date end) {
+        try {
+            return severalTypeEvents("getAllTypeEventByUserId", EventSearches.allTypeQueries(userId, start, end));
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Map<String, EventMap>> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end) {
+        Map<String, EventMap> eventMaps = new HashMap<>();
+        try {
+            return searchAllPages("getAllTypeEventsByUserIds", EventSearches.multiUserSearches(eventMaps, userIds, start, end))
+                    .thenApply(v -> eventMaps);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<EventMap> getSeveralTypeEventsByUserId(List<QueryObject> queryRequests) {
+        return severalTypeEvents("getSeveralTypeEventsByUserId", queryRequests);
+    }
+
+    private CompletableFuture<EventMap> severalTypeEvents(String operation, List<QueryObject> queryRequests) {
+        EventMap resultMap = new EventMap();
+        try {
+            // 每个排序键一个子查询, 通过_msearch在一次网络往返中发送
+            return searchAllPages(operation, EventSearches.groupedSearches(resultMap, queryRequests))
+                    .thenApply(v -> resultMap);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<EventMap> getMultiTypeEventsByUserId(List<QueryObject> queryRequests, String orderKey, SortOrder order) {
+        EventMap eventMap = new EventMap();
+        try {
+            return searchAllPages("getMultiTypeEventsByUserId", EventSearches.multiTypeSearches(eventMap, queryRequests, orderKey, order))
+                    .thenApply(v -> eventMap);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<List<Event<T>>> getSpecificEventsByUserId(String userId,
+                                                                           String indexName,
+                                                                           String type,
+                                                                           Class<T> classType,
+                                                                           Map<String, SortOrder> orderFields,
+                                                                           String filterName,
+                                                                           Date startDate,
+                                                                           Date endDate) {
+        return getSpecificEventsByUserId(userId, indexName, type, classType,
+                                         orderFields, filterName, startDate, endDate, null, null);
+    }
+
+    @Override
+    public <T> CompletableFuture<List<Event<T>>> getSpecificEventsByUserId(String userId,
+                                                                           String indexName,
+                                                                           String type,
+                                                                           Class<T> classType,
+                                                                           Map<String, SortOrder> orderFields,
+                                                                           String filterName,
+                                                                           Date startDate,
+                                                                           Date endDate,
+                                                                           String[] includes,
+                                                                           String[] excludes) {
+        List<Event<T>> events = new ArrayList<>();
+        try {
+            return searchAllPages("getSpecificEventsByUserId", Collections.singletonList(EventSearches.specificSearch(events::add, userId, indexName, type, classType,
+                                                                                         orderFields, filterName, startDate, endDate,
+                                                                                         includes, excludes)))
+                    .thenApply(v -> events);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<Long> streamSpecificEventsByUserId(String userId,
+                                                                    String indexName,
+                                                                    String type,
+                                                                    Class<T> classType,
+                                                                    Map<String, SortOrder> orderFields,
+                                                                    String filterName,
+                                                                    Date startDate,
+                                                                    Date endDate,
+                                                                    Consumer<? super Event<T>> sink) {
+        return streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                            orderFields, filterName, startDate, endDate, null, null, sink);
+    }
+
+    @Override
+    public <T> CompletableFuture<Long> streamSpecificEventsByUserId(String userId,
+                                                                    String indexName,
+                                                                    String type,
+                                                                    Class<T> classType,
+                                                                    Map<String, SortOrder> orderFields,
+                                                                    String filterName,
+                                                                    Date startDate,
+                                                                    Date endDate,
+                                                                    String[] includes,
+                                                                    String[] excludes,
+                                                                    Consumer<? super Event<T>> sink) {
+        LongAdder count = new LongAdder();
+        Consumer<Event<T>> counting = event -> {
+            sink.accept(event);
+            count.increment();
+        };
+        try {
+            return searchAllPages("streamSpecificEventsByUserId", Collections.singletonList(EventSearches.specificSearch(counting, userId, indexName, type, classType,
+                                                                                            orderFields, filterName, startDate, endDate,
+                                                                                            includes, excludes)))
+                    .thenApply(v -> count.sum());
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+    }
+
+    @Override
+    public <T> Publisher<Event<T>> publishSpecificEventsByUserId(String userId,
+                                                                 String indexName,
+                                                                 String type,
+                                                                 Class<T> classType,
+                                                                 Map<String, SortOrder> orderFields,
+                                                                 String filterName,
+                                                                 Date startDate,
+                                                                 Date endDate) {
+        return publishSpecificEventsByUserId(userId, indexName, type, classType,
+                                             orderFields, filterName, startDate, endDate, null, null);
+    }
+
+    @Override
+    public <T> Publisher<Event<T>> publishSpecificEventsByUserId(String userId,
+                                                                 String indexName,
+                                                                 String type,
+                                                                 Class<T> classType,
+                                                                 Map<String, SortOrder> orderFields,
+                                                                 String filterName,
+                                                                 Date startDate,
+                                                                 Date endDate,
+                                                                 String[] includes,
+                                                                 String[] excludes) {
+        return new EventPublisher<T>(sink -> {
+            PagedSearch pagedSearch = EventSearches.specificSearch(sink, userId, indexName, type, classType,
+                    orderFields, filterName, startDate, endDate, includes, excludes);
+            if (routingByUserId)
+                pagedSearch.routeByUserId();
+            return pagedSearch;
+        }, pagedSearch -> searchPage("publishSpecificEventsByUserId", pagedSearch));
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Encounter>>> getEncounterEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "encounters", "synthea", Encounter.class,
+                EventSearches.orderBy("date", SortOrder.DESC), "date", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Immunization>>> getImmunizationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "immunizations", "synthea", Immunization.class,
+                EventSearches.orderBy("date", SortOrder.DESC), "date", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Observation>>> getObservationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "observation", "synthea", Observation.class,
+                EventSearches.orderBy("date", SortOrder.DESC), "date", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Medication>>> getMedicationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "medications", "synthea", Medication.class,
+                EventSearches.orderBy("start", SortOrder.DESC), "start", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<CarePlan>>> getCarePlanEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "careplans", "synthea", CarePlan.class,
+                EventSearches.orderBy("start", SortOrder.DESC), "start", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Allergy>>> getAllergyEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "allergies", "synthea", Allergy.class,
+                EventSearches.orderBy("start", SortOrder.DESC), "start", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<List<Event<Condition>>> getConditionEventsByUserId(String userId, Date startDate, Date endDate) {
+        return getSpecificEventsByUserId(userId, "conditions", "synthea", Condition.class,
+                EventSearches.orderBy("start", SortOrder.DESC), "start", startDate, endDate);
+    }
+
+    @Override
+    public CompletableFuture<Event<UserBasic>> getUserBasicByUserId(String userId) {
+        return getSpecificEventsByUserId(userId, "patient", "synthea", UserBasic.class,
+                new HashMap<>(), "timestamp", null, null)
+                .thenApply(userBasicList -> userBasicList.size() == 0 ? null : userBasicList.get(0));
+    }
+
+    /**
+     * 异步地逐页发送查询, 每一轮的响应到达后再发送下一轮, 直到拉取完整的结果集
+     * 多个查询时每一轮通过_msearch一起发送所有还有下一页的查询
+     * @param operation 服务方法名, 用于记录查询指标
+     * @param pagedSearches 分页查询
+     * @return 所有页处理完成时结束的Future
+     */
+    private CompletableFuture<Void> searchAllPages(String operation, List<PagedSearch> pagedSearches) {
+        if (routingByUserId)
+            pagedSearches.forEach(PagedSearch::routeByUserId);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            searchNextPages(operation, pagedSearches, future);
+        } catch (RuntimeException e) {
+            // 发送第一轮请求时同步抛出的异常, 如客户端已经关闭
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void searchNextPages(String operation, List<PagedSearch> pending, CompletableFuture<Void> future) {
+        if (pending.isEmpty()) {
+            future.complete(null);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        ActionListener<List<SearchResponse>> listener = new ActionListener<List<SearchResponse>>() {
+            @Override
+            public void onResponse(List<SearchResponse> searchResponses) {
+                long latencyNanos = System.nanoTime() - startNanos;
+                decode(future, () -> searchNextPages(operation,
+                        PagedSearch.consumeAll(pending, searchResponses, metrics, operation, latencyNanos), future));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.completeExceptionally(
+                        new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!", e));
+            }
+        };
+
+        List<SearchRequest> requests = PagedSearch.requests(pending);
+        if (requests.size() == 1)
+            client.searchAsync(requests.get(0), ActionListener.wrap(
+                    response -> listener.onResponse(Collections.singletonList(response)), listener::onFailure));
+        else
+            MultiSearch.searchAsync(client.getLowLevelClient(), requests, listener);
+    }
+
+    /**
+     * 异步地发送分页查询的当前页, 响应到达后在decodeExecutor中处理这一页的结果
+     * @param operation 服务方法名, 用于记录查询指标
+     * @param pagedSearch 分页查询
+     * @return 是否还有下一页
+     */
+    private CompletableFuture<Boolean> searchPage(String operation, PagedSearch pagedSearch) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long startNanos = System.nanoTime();
+        client.searchAsync(pagedSearch.request(), ActionListener.wrap(response -> {
+            long latencyNanos = System.nanoTime() - startNanos;
+            decode(future, () -> future.complete(pagedSearch.consume(response, metrics, operation, latencyNanos)));
+        }, e -> future.completeExceptionally(
+                new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!", e))));
+        return future;
+    }
+
+    /**
+     * 在decodeExecutor中处理响应, 处理失败或线程池拒绝执行(如已经关闭)时以异常结束future
+     * @param future 响应处理完成时结束的Future
+     * @param task 处理响应的任务
+     */
+    private void decode(CompletableFuture<?> future, Runnable task) {
+        try {
+            decodeExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // 包括解析时的Error(如StackOverflowError), 先结束future, Error仍然交给线程池处理
+                    future.completeExceptionally(e);
+                    if (e instanceof Error)
+                        throw (Error) e;
+                }
+            });
+        } catch (RuntimeException e) {
+            // 包括RejectedExecutionException, 否则调用方会永远等待
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
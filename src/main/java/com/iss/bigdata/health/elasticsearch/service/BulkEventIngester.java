@@ -0,0 +1,351 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.help.UserRouting;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.*;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 通过BulkProcessor批量写入synthea事件, 用于大批量地导入或重新导入数据
+ * 生产者调用{@link #index(Object)}把记录放入有界队列, 后台线程把队列中的记录交给BulkProcessor,
+ * BulkProcessor按照记录数或字节数凑成bulk请求并发发送; 同时执行的bulk请求达到上限时后台线程等待,
+ * 队列随之写满, 生产者也随之等待, 因此内存中等待写入的记录数量始终有上限
+ * 因集群繁忙(429)被拒绝的记录按照指数退避重新写入, 超过重试次数或因其他原因失败的记录计入失败数
+ * 注意：6.1版本的BulkProcessor通过REST客户端写入时无法识别被拒绝的记录, 因此由本类自行重试
+ * 用法:
+ * <pre>
+ * try (BulkEventIngester ingester = new BulkEventIngester(client, new BulkIngestConfig())) {
+ *     for (Condition condition : conditions)
+ *         ingester.index(condition);
+ * }
+ * </pre>
+ */
+public class BulkEventIngester implements AutoCloseable {
+    private static final String TYPE = "synthea";
+    /** 放入队列表示不再有新的记录 */
+    private static final IndexRequest END = new IndexRequest();
+
+    private final BulkIngestConfig config;
+    private final BlockingQueue<IndexRequest> queue;
+    private final BulkProcessor processor;
+    private final ScheduledExecutorService retryScheduler;
+    private final Thread drainer;
+
+    /** 已经放入队列但还没有写入成功或最终失败的记录数 */
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final Object idle = new Object();
+    private volatile boolean closed;
+    private volatile String lastFailure;
+
+    /**
+     * @param client Elasticsearch客户端, 由调用者负责关闭
+     * @param config 批量写入的配置
+     */
+    public BulkEventIngester(RestHighLevelClient client, BulkIngestConfig config) {
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+
+        BulkProcessor.Builder builder = BulkProcessor.builder(client::bulkAsync, new RetryingListener())
+                .setBulkActions(config.getBulkActions())
+                .setBulkSize(new ByteSizeValue(config.getBulkSizeBytes()))
+                .setConcurrentRequests(config.getConcurrentRequests())
+                // 被拒绝的记录由RetryingListener重试
+                .setBackoffPolicy(BackoffPolicy.noBackoff());
+        if (config.getFlushIntervalMillis() > 0)
+            builder.setFlushInterval(TimeValue.timeValueMillis(config.getFlushIntervalMillis()));
+        this.processor = builder.build();
+
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-event-ingester-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.drainer = new Thread(this::drain, "bulk-event-ingester");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * 写入一个实体, 索引由实体类型在{@link EventTypeRegistry}中注册的索引决定, 记录id由Elasticsearch生成
+     * 队列已满时等待
+     * @param entity 实体, 如Condition、Observation
+     */
+    public void index(Object entity) {
+        EventTypeRegistry.Entry<?> eventType = EventTypeRegistry.forClass(entity.getClass());
+        if (eventType == null)
+            throw new RuntimeException("未注册的实体类型: " + entity.getClass().getName());
+        index(eventType.getIndexName(), null, entity);
+    }
+
+    /**
+     * 写入一条记录, 队列已满时等待
+     * @param indexName 索引名
+     * @param id 记录的id, 为null时由Elasticsearch生成
+     * @param source 实体对象, 或者直接是记录内容的Map
+     */
+    public void index(String indexName, String id, Object source) {
+        IndexRequest request = indexRequest(indexName, id, source);
+        ensureOpen();
+        pending.incrementAndGet();
+        try {
+            queue.put(request);
+        } catch (InterruptedException e) {
+            finish(1);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("等待写入队列时被中断", e);
+        }
+        if (withdrawIfClosed(request))
+            throw new RuntimeException("批量写入已经关闭");
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * 写入一条记录, 队列已满时最多等待timeout
+     * @return 是否放入了队列, 超时未放入时返回false
+     * @see #index(String, String, Object)
+     */
+    public boolean offer(String indexName, String id, Object source, long timeout, TimeUnit unit) throws InterruptedException {
+        IndexRequest request = indexRequest(indexName, id, source);
+        ensureOpen();
+        pending.incrementAndGet();
+        boolean offered;
+        try {
+            offered = queue.offer(request, timeout, unit);
+        } catch (InterruptedException e) {
+            finish(1);
+            throw e;
+        }
+        if (!offered) {
+            finish(1);
+            return false;
+        }
+        if (withdrawIfClosed(request))
+            throw new RuntimeException("批量写入已经关闭");
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 等待已经提交的记录全部写入成功或最终失败
+     * @return 是否在timeout之内全部完成
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            // 发送BulkProcessor中未满的bulk请求
+            processor.flush();
+            synchronized (idle) {
+                if (pending.get() > 0)
+                    idle.wait(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), 100)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 不再接受新的记录, 等待已经提交的记录全部完成后关闭
+     * 与close同时写入的记录或者照常写入, 或者计入失败数, 或者由index/offer抛出异常, 不会使close一直等待
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            queue.put(END);
+            drainer.join();
+            // 在END之后才放入队列的记录不会再被后台线程取出
+            List<IndexRequest> leftovers = new ArrayList<>();
+            queue.drainTo(leftovers);
+            if (!leftovers.isEmpty())
+                fail(leftovers.size(), "批量写入已经关闭");
+            flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            processor.close();
+            retryScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * @return 已经提交的记录数
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return 写入成功的记录数
+     */
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    /**
+     * @return 最终写入失败的记录数
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return 因集群繁忙被拒绝而重试的次数
+     */
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * @return 最近一次写入失败的原因, 没有失败时返回null
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return 队列中等待交给BulkProcessor的记录数
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private IndexRequest indexRequest(String indexName, String id, Object source) {
+        JSONObject json = (JSONObject) JSON.toJSON(source);
+        IndexRequest request = new IndexRequest(indexName, TYPE, id)
+                .source(JSON.toJSONStringWithDateFormat(json, config.getDateFormat()), XContentType.JSON);
+        if (config.isRoutingByUserId())
+            request.routing(UserRouting.routing(json));
+        return request;
+    }
+
+    private void ensureOpen() {
+        if (closed)
+            throw new RuntimeException("批量写入已经关闭");
+    }
+
+    // close之后才放入队列的记录可能不会再被取出, 由生产者自己撤回; 已经被close取走的记录计入失败数
+    private boolean withdrawIfClosed(IndexRequest request) {
+        if (closed && queue.remove(request)) {
+            finish(1);
+            return true;
+        }
+        return false;
+    }
+
+    // 后台线程把队列中的记录交给BulkProcessor, 同时执行的bulk请求达到上限时在add中等待
+    private void drain() {
+        try {
+            while (true) {
+                IndexRequest request = queue.take();
+                if (request == END)
+                    return;
+                add(request, 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void add(DocWriteRequest request, int attempt) {
+        try {
+            // 重试次数作为payload随bulk请求返回
+            processor.add(request, attempt);
+        } catch (RuntimeException e) {
+            fail(1, e.toString());
+        }
+    }
+
+    private void retry(DocWriteRequest request, int attempt) {
+        retried.incrementAndGet();
+        long delay = config.getInitialBackoffMillis() << Math.min(attempt - 1, 20);
+        try {
+            retryScheduler.schedule(() -> add(request, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fail(1, e.toString());
+        }
+    }
+
+    private void fail(int count, String reason) {
+        failed.addAndGet(count);
+        lastFailure = reason;
+        finish(count);
+    }
+
+    private void finish(int count) {
+        if (pending.addAndGet(-count) == 0)
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+    }
+
+    private static int attemptOf(BulkRequest request, int itemId) {
+        List<Object> payloads = request.payloads();
+        Object attempt = payloads == null || itemId >= payloads.size() ? null : payloads.get(itemId);
+        return attempt instanceof Integer ? (Integer) attempt : 0;
+    }
+
+    private static boolean isRejection(Throwable e) {
+        return e instanceof ElasticsearchException && ((ElasticsearchException) e).status() == RestStatus.TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * 统计每个bulk请求的结果, 被拒绝的记录按照退避时间重新写入
+     */
+    private class RetryingListener implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            int succeeded = 0;
+            for (BulkItemResponse item : response.getItems()) {
+                if (!item.isFailed()) {
+                    succeeded++;
+                    continue;
+                }
+                int attempt = attemptOf(request, item.getItemId());
+                if (item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS && attempt < config.getMaxRetries())
+                    retry(request.requests().get(item.getItemId()), attempt + 1);
+                else
+                    fail(1, item.getFailureMessage());
+            }
+            indexed.addAndGet(succeeded);
+            finish(succeeded);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            List<DocWriteRequest> requests = request.requests();
+            for (int i = 0; i < requests.size(); i++) {
+                int attempt = attemptOf(request, i);
+                if (isRejection(failure) && attempt < config.getMaxRetries())
+                    retry(requests.get(i), attempt + 1);
+                else
+                    fail(1, failure.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+/**
+ * 批量写入的配置, 通过setter设置, 没有设置的配置项使用默认值
+ */
+public class BulkIngestConfig {
+    /** 每个bulk请求最多包含的记录数 */
+    private int bulkActions = 1000;
+    /** 每个bulk请求的最大字节数 */
+    private long bulkSizeBytes = 5 * 1024 * 1024;
+    /** 同时执行的bulk请求数, 达到上限时写入线程等待, 为0时同步执行 */
+    private int concurrentRequests = 2;
+    /** 定时发送未满的bulk请求的间隔, 小于等于0时只在写满或flush时发送 */
+    private long flushIntervalMillis = 5000;
+    /** 等待写入的记录队列的容量, 队列满时生产者等待 */
+    private int queueCapacity = 10000;
+    /** 因集群繁忙(429)被拒绝的记录第一次重试前的等待时间, 之后每次重试等待时间加倍 */
+    private long initialBackoffMillis = 100;
+    /** 被拒绝的记录最多重试的次数, 超过后记为失败 */
+    private int maxRetries = 8;
+    /** 是否以user_id作为路由值写入, 见{@link com.iss.bigdata.health.elasticsearch.help.UserRouting} */
+    private boolean routingByUserId;
+    /** 实体中日期字段写入的格式, 与synthea导出数据的格式一致 */
+    private String dateFormat = "yyyy-MM-dd";
+
+    public BulkIngestConfig() {
+    }
+
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public void setBulkActions(int bulkActions) {
+        this.bulkActions = bulkActions;
+    }
+
+    public long getBulkSizeBytes() {
+        return bulkSizeBytes;
+    }
+
+    public void setBulkSizeBytes(long bulkSizeBytes) {
+        this.bulkSizeBytes = bulkSizeBytes;
+    }
+
+    public int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    public void setConcurrentRequests(int concurrentRequests) {
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public boolean isRoutingByUserId() {
+        return routingByUserId;
+    }
+
+    public void setRoutingByUserId(boolean routingByUserId) {
+        this.routingByUserId = routingByUserId;
+    }
+
+    public String getDateFormat() {
+        return dateFormat;
+    }
+
+    public void setDateFormat(String dateFormat) {
+        this.dateFormat = dateFormat;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkIngestConfig{" +
+                "bulkActions=" + bulkActions +
+                ", bulkSizeBytes=" + bulkSizeBytes +
+                ", concurrentRequests=" + concurrentRequests +
+                ", flushIntervalMillis=" + flushIntervalMillis +
+                ", queueCapacity=" + queueCapacity +
+                ", initialBackoffMillis=" + initialBackoffMillis +
+                ", maxRetries=" + maxRetries +
+                ", routingByUserId=" + routingByUserId +
+                ", dateFormat='" + dateFormat + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,387 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 带缓存的查询服务, 包装任意一个{@link ElasticSearchService}
+ * 以(用户, 索引, 类型, 排序键)为单位缓存按日期降序排列的事件列表, 缓存条目数量有上限, 超出时淘汰最久未使用的条目, 条目超过存活时间后失效
+ * 查询的时间范围落在已缓存的更大时间范围之内时, 直接从缓存的列表中截取, 不再访问Elasticsearch
+ * 排序键同时决定了过滤的时间字段和事件的日期, 以不同排序键查询同一个索引的结果分别缓存
+ * 注意：只缓存降序排列且获取全部字段的查询, 其余查询直接交给被包装的服务
+ */
+public class CachingElasticSearchService implements ElasticSearchService {
+    private final ElasticSearchService delegate;
+    private final long ttlMillis;
+    private final Map<String, CacheEntry> cache;
+
+    /**
+     * @param delegate 被包装的查询服务
+     * @param maxEntries 最多缓存的事件列表数量
+     * @param ttlMillis 缓存条目的存活时间, 单位毫秒
+     */
+    public CachingElasticSearchService(ElasticSearchService delegate, int maxEntries, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 清除某个用户的全部缓存, 在用户数据发生变化时调用
+     * @param userId 用户的id
+     */
+    public void invalidate(String userId) {
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.startsWith(userId + "/"));
+        }
+    }
+
+    /**
+     * 清除全部缓存
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public EventMap getAllTypeEventByUserId(String userId, Date start, Date end) {
+        return cachedEventMap(EventSearches.allTypeQueries(userId, start, end),
+                () -> delegate.getAllTypeEventByUserId(userId, start, end));
+    }
+
+    @Override
+    public Map<String, EventMap> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end) {
+        Map<String, EventMap> eventMaps = new HashMap<>();
+        List<String> missingUserIds = new ArrayList<>();
+        for (String userId : userIds) {
+            EventMap eventMap = lookupEventMap(EventSearches.allTypeQueries(userId, start, end));
+            if (eventMap == null)
+                missingUserIds.add(userId);
+            else
+                eventMaps.put(userId, eventMap);
+        }
+        if (missingUserIds.isEmpty())
+            return eventMaps;
+
+        Map<String, EventMap> loaded = delegate.getAllTypeEventsByUserIds(missingUserIds, start, end);
+        loaded.forEach((userId, eventMap) -> storeEventMap(EventSearches.allTypeQueries(userId, start, end), eventMap));
+        eventMaps.putAll(loaded);
+        return eventMaps;
+    }
+
+    @Override
+    public EventMap getSeveralTypeEventsByUserId(List<QueryObject> queryRequests) {
+        return cachedEventMap(queryRequests, () -> delegate.getSeveralTypeEventsByUserId(queryRequests));
+    }
+
+    /**
+     * 增量刷新直接修改调用方的eventMap, 不经过缓存
+     */
+    @Override
+    public long refreshSeveralTypeEventsByUserId(EventMap eventMap, List<QueryObject> queryRequests, long sinceTimestamp) {
+        return delegate.refreshSeveralTypeEventsByUserId(eventMap, queryRequests, sinceTimestamp);
+    }
+
+    @Override
+    public long refreshAllTypeEventByUserId(EventMap eventMap, String userId, Date start, Date end, long sinceTimestamp) {
+        return delegate.refreshAllTypeEventByUserId(eventMap, userId, start, end, sinceTimestamp);
+    }
+
+    @Override
+    public EventMap getMutiTypeEventsByUserIdOrderByDate(List<QueryObject> queryRequests) {
+        return getMultiTypeEventsByUserId(queryRequests, "date", SortOrder.DESC);
+    }
+
+    @Override
+    public EventMap getMutiTypeEventsByUserIdOrderByStart(List<QueryObject> queryRequests) {
+        return getMultiTypeEventsByUserId(queryRequests, "start", SortOrder.DESC);
+    }
+
+    @Override
+    public EventMap getMultiTypeEventsByUserId(List<QueryObject> queryRequests, String orderKey, SortOrder order) {
+        if (order != SortOrder.DESC)
+            return delegate.getMultiTypeEventsByUserId(queryRequests, orderKey, order);
+        return cachedEventMap(queryRequests, () -> delegate.getMultiTypeEventsByUserId(queryRequests, orderKey, order));
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId, String indexName, String type, Class<T> classType) {
+        return delegate.getSpecificEventsByUserId(userId, indexName, type, classType);
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                        String indexName,
+                                                        String type,
+                                                        Class<T> classType,
+                                                        Map<String, SortOrder> orderFields,
+                                                        String filterName,
+                                                        Date startDate,
+                                                        Date endDate) {
+        return delegate.getSpecificEventsByUserId(userId, indexName, type, classType,
+                                                  orderFields, filterName, startDate, endDate);
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                        String indexName,
+                                                        String type,
+                                                        Class<T> classType,
+                                                        Map<String, SortOrder> orderFields,
+                                                        String filterName,
+                                                        Date startDate,
+                                                        Date endDate,
+                                                        String[] includes,
+                                                        String[] excludes) {
+        return delegate.getSpecificEventsByUserId(userId, indexName, type, classType,
+                                                  orderFields, filterName, startDate, endDate, includes, excludes);
+    }
+
+    /**
+     * 流式查询不保存结果, 不经过缓存
+     */
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 Consumer<? super Event<T>> sink) {
+        return delegate.streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                                     orderFields, filterName, startDate, endDate, sink);
+    }
+
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 String[] includes,
+                                                 String[] excludes,
+                                                 Consumer<? super Event<T>> sink) {
+        return delegate.streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                                     orderFields, filterName, startDate, endDate, includes, excludes, sink);
+    }
+
+    @Override
+    public List<Event<Encounter>> getEncounterEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "encounters", startDate, endDate,
+                () -> delegate.getEncounterEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public List<Event<Immunization>> getImmunizationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "immunizations", startDate, endDate,
+                () -> delegate.getImmunizationEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public List<Event<Observation>> getObservationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "observation", startDate, endDate,
+                () -> delegate.getObservationEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public ObservationSeries getObservationSeriesByUserId(String userId, Date startDate, Date endDate, String... signNames) {
+        return delegate.getObservationSeriesByUserId(userId, startDate, endDate, signNames);
+    }
+
+    @Override
+    public ObservationStatistics getObservationStatisticsByUserId(String userId, Date startDate, Date endDate,
+                                                                  DateHistogramInterval interval, double[] percents, String... signNames) {
+        return delegate.getObservationStatisticsByUserId(userId, startDate, endDate, interval, percents, signNames);
+    }
+
+    @Override
+    public List<Event<Medication>> getMedicationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "medications", startDate, endDate,
+                () -> delegate.getMedicationEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public List<Event<CarePlan>> getCarePlanEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "careplans", startDate, endDate,
+                () -> delegate.getCarePlanEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public List<Event<Allergy>> getAllergyEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "allergies", startDate, endDate,
+                () -> delegate.getAllergyEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public List<Event<Condition>> getConditionEventsByUserId(String userId, Date startDate, Date endDate) {
+        return cachedList(userId, "conditions", startDate, endDate,
+                () -> delegate.getConditionEventsByUserId(userId, startDate, endDate));
+    }
+
+    @Override
+    public Event<UserBasic> getUserBasicByUserId(String userId) {
+        return delegate.getUserBasicByUserId(userId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<Event<T>> cachedList(String userId, String indexName, Date start, Date end,
+                                          Supplier<List<Event<T>>> loader) {
+        // 单类型的查询方法都按照索引注册的排序键过滤和排序
+        String key = cacheKey(userId, indexName, "synthea", EventTypeRegistry.getOrderKey(indexName));
+        List<Event<?>> events = lookup(key, start, end);
+        if (events != null)
+            return (List<Event<T>>) (List<?>) events;
+
+        List<Event<T>> loaded = loader.get();
+        store(key, start, end, loaded);
+        return loaded;
+    }
+
+    private EventMap cachedEventMap(List<QueryObject> queryRequests, Supplier<EventMap> loader) {
+        // 只获取部分字段的查询结果不完整, 不参与缓存
+        if (queryRequests.stream().anyMatch(QueryObject::hasProjection))
+            return loader.get();
+
+        EventMap eventMap = lookupEventMap(queryRequests);
+        if (eventMap != null)
+            return eventMap;
+
+        EventMap loaded = loader.get();
+        storeEventMap(queryRequests, loaded);
+        return loaded;
+    }
+
+    // 所有查询都命中缓存时才返回结果, 否则返回null
+    private EventMap lookupEventMap(List<QueryObject> queryRequests) {
+        EventMap eventMap = new EventMap();
+        for (QueryObject q : queryRequests) {
+            List<Event<?>> events = lookup(cacheKey(q), q.getStart(), q.getEnd());
+            if (events == null)
+                return null;
+            eventMap.put(q.getIndexName(), events);
+        }
+        return eventMap;
+    }
+
+    private void storeEventMap(List<QueryObject> queryRequests, EventMap eventMap) {
+        for (QueryObject q : queryRequests)
+            store(cacheKey(q), q.getStart(), q.getEnd(), eventMap.getEventList(q.getClassType(), q.getIndexName()));
+    }
+
+    private static String cacheKey(QueryObject<?> q) {
+        return cacheKey(q.getUserId(), q.getIndexName(), q.getType(), q.getFilterNameAndOrderKey());
+    }
+
+    // 以userId开头, invalidate按照前缀清除某个用户的缓存
+    private static String cacheKey(String userId, String indexName, String type, String orderKey) {
+        return userId + "/" + indexName + "/" + type + "/" + orderKey;
+    }
+
+    private List<Event<?>> lookup(String key, Date start, Date end) {
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.isExpired()) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null || !entry.covers(start, end))
+            return null;
+        return entry.slice(start, end);
+    }
+
+    private void store(String key, Date start, Date end, List<? extends Event<?>> events) {
+        if (events == null)
+            return;
+        CacheEntry entry = new CacheEntry(start, end, new ArrayList<>(events), System.currentTimeMillis() + ttlMillis);
+        synchronized (cache) {
+            CacheEntry existing = cache.get(key);
+            // 已有的缓存覆盖了更大的时间范围时保留原有缓存
+            if (existing != null && !existing.isExpired() && existing.covers(start, end))
+                return;
+            cache.put(key, entry);
+        }
+    }
+
+    /**
+     * 一个(用户, 索引, 类型, 排序键)的缓存条目, 事件按照日期降序排列, 缺少日期的事件排在最后
+     */
+    private static class CacheEntry {
+        private final Date start;
+        private final Date end;
+        private final List<Event<?>> events;
+        private final long expireAt;
+
+        CacheEntry(Date start, Date end, List<Event<?>> events, long expireAt) {
+            this.start = start;
+            this.end = end;
+            this.events = events;
+            this.expireAt = expireAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expireAt;
+        }
+
+        /**
+         * null表示时间范围没有下界或上界
+         * @return 缓存的时间范围是否包含了[from, to]
+         */
+        boolean covers(Date from, Date to) {
+            boolean coversStart = start == null || (from != null && !from.before(start));
+            boolean coversEnd = end == null || (to != null && !to.after(end));
+            return coversStart && coversEnd;
+        }
+
+        /**
+         * 通过二分查找截取[from, to]范围内的事件
+         */
+        List<Event<?>> slice(Date from, Date to) {
+            if (from == null && to == null)
+                return new ArrayList<>(events);
+            // 降序排列, 第一个不晚于to的位置和第一个早于from的位置
+            int fromIndex = to == null ? 0 : firstIndexNotAfter(to.getTime(), false);
+            int toIndex = from == null ? events.size() : firstIndexNotAfter(from.getTime(), true);
+            return new ArrayList<>(events.subList(fromIndex, Math.max(fromIndex, toIndex)));
+        }
+
+        // exclusive为false时查找第一个日期<=millis的位置, 为true时查找第一个日期<millis的位置
+        private int firstIndexNotAfter(long millis, boolean exclusive) {
+            int low = 0, high = events.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                long date = events.get(mid).getDateMillis();
+                boolean found = date == EpochMillis.NONE
+                        || (exclusive ? date < millis : date <= millis);
+                if (found)
+                    high = mid;
+                else
+                    low = mid + 1;
+            }
+            return low;
+        }
+    }
+}
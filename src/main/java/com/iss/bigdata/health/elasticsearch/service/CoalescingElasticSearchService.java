@@ -0,0 +1,309 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * 合并并发相同查询的服务, 包装任意一个{@link ElasticSearchService}
+ * 一个查询正在执行时, 其他线程发起的相同查询不再访问Elasticsearch, 而是等待这个查询完成并使用它的结果,
+ * 多事件查询以去除顺序后的{@link QueryObject}集合判断是否相同
+ * 与{@link CachingElasticSearchService}不同, 查询完成后不保留结果, 之后的查询会重新访问Elasticsearch
+ * 等待的调用方各自得到EventMap及其中事件列表的浅拷贝, 修改返回的列表不会影响其他调用方(包括执行查询的调用方), 事件对象本身仍然是共享的
+ * 判断查询是否相同的key由参数的不可变副本构成, 调用方之后修改QueryObject、Date等参数不会影响正在执行的合并
+ */
+public class CoalescingElasticSearchService implements ElasticSearchService {
+    private final ElasticSearchService delegate;
+    private final Map<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param delegate 被包装的查询服务
+     */
+    public CoalescingElasticSearchService(ElasticSearchService delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return 因为相同的查询正在执行而没有访问Elasticsearch的调用次数
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public EventMap getAllTypeEventByUserId(String userId, Date start, Date end) {
+        return coalesce(eventMapKey(EventSearches.allTypeQueries(userId, start, end), null, null),
+                () -> delegate.getAllTypeEventByUserId(userId, start, end), CoalescingElasticSearchService::copyEventMap);
+    }
+
+    @Override
+    public Map<String, EventMap> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end) {
+        return coalesce(Arrays.asList("getAllTypeEventsByUserIds", new HashSet<>(userIds), millis(start), millis(end)),
+                () -> delegate.getAllTypeEventsByUserIds(userIds, start, end), eventMaps -> {
+                    Map<String, EventMap> copy = new HashMap<>();
+                    eventMaps.forEach((userId, eventMap) -> copy.put(userId, copyEventMap(eventMap)));
+                    return copy;
+                });
+    }
+
+    @Override
+    public EventMap getSeveralTypeEventsByUserId(List<QueryObject> queryRequests) {
+        return coalesce(eventMapKey(queryRequests, null, null),
+                () -> delegate.getSeveralTypeEventsByUserId(queryRequests), CoalescingElasticSearchService::copyEventMap);
+    }
+
+    /**
+     * 增量刷新直接修改调用方的eventMap, 不与其他调用合并
+     */
+    @Override
+    public long refreshSeveralTypeEventsByUserId(EventMap eventMap, List<QueryObject> queryRequests, long sinceTimestamp) {
+        return delegate.refreshSeveralTypeEventsByUserId(eventMap, queryRequests, sinceTimestamp);
+    }
+
+    @Override
+    public long refreshAllTypeEventByUserId(EventMap eventMap, String userId, Date start, Date end, long sinceTimestamp) {
+        return delegate.refreshAllTypeEventByUserId(eventMap, userId, start, end, sinceTimestamp);
+    }
+
+    @Override
+    public EventMap getMutiTypeEventsByUserIdOrderByDate(List<QueryObject> queryRequests) {
+        return getMultiTypeEventsByUserId(queryRequests, "date", SortOrder.DESC);
+    }
+
+    @Override
+    public EventMap getMutiTypeEventsByUserIdOrderByStart(List<QueryObject> queryRequests) {
+        return getMultiTypeEventsByUserId(queryRequests, "start", SortOrder.DESC);
+    }
+
+    @Override
+    public EventMap getMultiTypeEventsByUserId(List<QueryObject> queryRequests, String orderKey, SortOrder order) {
+        return coalesce(eventMapKey(queryRequests, orderKey, order),
+                () -> delegate.getMultiTypeEventsByUserId(queryRequests, orderKey, order), CoalescingElasticSearchService::copyEventMap);
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId, String indexName, String type, Class<T> classType) {
+        return coalesce(Arrays.asList("getSpecificEventsByUserId", userId, indexName, type, classType),
+                () -> delegate.getSpecificEventsByUserId(userId, indexName, type, classType), ArrayList::new);
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                        String indexName,
+                                                        String type,
+                                                        Class<T> classType,
+                                                        Map<String, SortOrder> orderFields,
+                                                        String filterName,
+                                                        Date startDate,
+                                                        Date endDate) {
+        return getSpecificEventsByUserId(userId, indexName, type, classType,
+                                         orderFields, filterName, startDate, endDate, null, null);
+    }
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                        String indexName,
+                                                        String type,
+                                                        Class<T> classType,
+                                                        Map<String, SortOrder> orderFields,
+                                                        String filterName,
+                                                        Date startDate,
+                                                        Date endDate,
+                                                        String[] includes,
+                                                        String[] excludes) {
+        // 排序字段的先后顺序影响结果, 复制为有序的列表作为key的一部分
+        List<Object> orders = null;
+        if (orderFields != null) {
+            orders = new ArrayList<>();
+            for (Map.Entry<String, SortOrder> orderField : orderFields.entrySet())
+                orders.add(new AbstractMap.SimpleImmutableEntry<>(orderField));
+        }
+        List<Object> key = Arrays.asList("getSpecificEventsByUserId", userId, indexName, type, classType, orders,
+                filterName, millis(startDate), millis(endDate), copy(includes), copy(excludes));
+        return coalesce(key, () -> delegate.getSpecificEventsByUserId(userId, indexName, type, classType,
+                orderFields, filterName, startDate, endDate, includes, excludes), ArrayList::new);
+    }
+
+    /**
+     * 流式查询的结果直接交给各自的sink, 不与其他调用合并
+     */
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 Consumer<? super Event<T>> sink) {
+        return delegate.streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                                     orderFields, filterName, startDate, endDate, sink);
+    }
+
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 String[] includes,
+                                                 String[] excludes,
+                                                 Consumer<? super Event<T>> sink) {
+        return delegate.streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                                     orderFields, filterName, startDate, endDate, includes, excludes, sink);
+    }
+
+    @Override
+    public List<Event<Encounter>> getEncounterEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "encounters", startDate, endDate),
+                () -> delegate.getEncounterEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public List<Event<Immunization>> getImmunizationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "immunizations", startDate, endDate),
+                () -> delegate.getImmunizationEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public List<Event<Observation>> getObservationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "observation", startDate, endDate),
+                () -> delegate.getObservationEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public ObservationSeries getObservationSeriesByUserId(String userId, Date startDate, Date endDate, String... signNames) {
+        // ObservationSeries不可修改, 等待的调用方直接共享
+        return coalesce(Arrays.asList("getObservationSeriesByUserId", userId, millis(startDate), millis(endDate), copy(signNames)),
+                () -> delegate.getObservationSeriesByUserId(userId, startDate, endDate, signNames), UnaryOperator.identity());
+    }
+
+    @Override
+    public ObservationStatistics getObservationStatisticsByUserId(String userId, Date startDate, Date endDate,
+                                                                  DateHistogramInterval interval, double[] percents, String... signNames) {
+        return delegate.getObservationStatisticsByUserId(userId, startDate, endDate, interval, percents, signNames);
+    }
+
+    @Override
+    public List<Event<Medication>> getMedicationEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "medications", startDate, endDate),
+                () -> delegate.getMedicationEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public List<Event<CarePlan>> getCarePlanEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "careplans", startDate, endDate),
+                () -> delegate.getCarePlanEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public List<Event<Allergy>> getAllergyEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "allergies", startDate, endDate),
+                () -> delegate.getAllergyEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public List<Event<Condition>> getConditionEventsByUserId(String userId, Date startDate, Date endDate) {
+        return coalesce(eventListKey(userId, "conditions", startDate, endDate),
+                () -> delegate.getConditionEventsByUserId(userId, startDate, endDate), ArrayList::new);
+    }
+
+    @Override
+    public Event<UserBasic> getUserBasicByUserId(String userId) {
+        return coalesce(Arrays.asList("getUserBasicByUserId", userId),
+                () -> delegate.getUserBasicByUserId(userId), UnaryOperator.identity());
+    }
+
+    /**
+     * 多事件查询的key, 查询的先后顺序不影响结果, 因此使用集合
+     * getAllTypeEventByUserId与getSeveralTypeEventsByUserId的排序相同, 不指定排序时两者共享同一个key
+     */
+    private static Object eventMapKey(List<QueryObject> queryRequests, String orderKey, SortOrder order) {
+        Set<Object> queries = new HashSet<>();
+        for (QueryObject<?> q : queryRequests)
+            queries.add(queryKey(q));
+        return Arrays.asList("EventMap", queries, orderKey, order);
+    }
+
+    // QueryObject可以修改, 复制它的各个字段作为key
+    private static Object queryKey(QueryObject<?> q) {
+        return Arrays.asList(q.getUserId(), q.getIndexName(), q.getType(), q.getClassType(), q.getFilterNameAndOrderKey(),
+                millis(q.getStart()), millis(q.getEnd()), copy(q.getIncludes()), copy(q.getExcludes()));
+    }
+
+    private static Object eventListKey(String userId, String indexName, Date start, Date end) {
+        return Arrays.asList("EventList", userId, indexName, millis(start), millis(end));
+    }
+
+    // Date可以修改, key中只保存它的毫秒值
+    private static Long millis(Date date) {
+        return date == null ? null : date.getTime();
+    }
+
+    private static List<String> copy(String[] values) {
+        return values == null ? null : Arrays.asList(values.clone());
+    }
+
+    private static EventMap copyEventMap(EventMap eventMap) {
+        EventMap copy = new EventMap();
+        eventMap.forEach((indexName, events) -> copy.put(indexName, events == null ? null : new ArrayList<>(events)));
+        return copy;
+    }
+
+    /**
+     * 第一个发起查询的线程执行查询, 查询期间到达的相同查询等待它的结果或异常
+     * 等待的调用方复制的是一份不交给任何调用方的快照, 第一个调用方修改自己的结果时不会与复制并发
+     * @param copier 为每个等待的调用方复制结果, 使它们互不影响
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R coalesce(Object key, Supplier<R> loader, UnaryOperator<R> copier) {
+        CompletableFuture<Object> own = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.increment();
+            R shared = (R) await(running);
+            return shared == null ? null : copier.apply(shared);
+        }
+
+        try {
+            R result = loader.get();
+            own.complete(result == null ? null : copier.apply(result));
+            return result;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+}
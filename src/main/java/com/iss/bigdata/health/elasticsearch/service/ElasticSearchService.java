@@ -2,13 +2,18 @@ package com.iss.bigdata.health.elasticsearch.service;
 
 import com.iss.bigdata.health.elasticsearch.entity.*;
 import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
 import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Created by dujijun on 2018/1/5.
@@ -16,6 +21,15 @@ import java.util.Map;
 public interface ElasticSearchService {
     EventMap getAllTypeEventByUserId(String userId, Date start, Date end);
 
+    /**
+     * 批量查询多个用户的全部类型事件, 多个用户合并为terms查询, 并通过一次_msearch发送
+     * @param userIds 用户id
+     * @param start 开始时间
+     * @param end 结束时间
+     * @return (用户id, 该用户的多事件映射), 没有任何事件的用户对应空的事件列表
+     */
+    Map<String, EventMap> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end);
+
     /**
      * 组合查询, 查询多个类型的EventList
      * @param queryRequests 查询请求列表
@@ -23,6 +37,25 @@ public interface ElasticSearchService {
      */
     EventMap getSeveralTypeEventsByUserId(List<QueryObject> queryRequests);
 
+    /**
+     * 增量刷新之前查询得到的多事件映射, 只查询timestamp不早于高水位(并向前重叠一小段)的记录, 并按照日期合并到eventMap中已排好序的列表里,
+     * id相同的记录以新记录替换旧记录, 因此重叠部分重复查询到的记录不会重复出现
+     * 第一次查询时传入空的EventMap和Long.MIN_VALUE, 即获取全部记录并得到高水位
+     * 注意：eventMap中的列表必须按照日期降序排列, 即getSeveralTypeEventsByUserId返回的顺序;
+     * 要求timestamp随写入单调增加, 以早于高水位的timestamp补写的记录不会被刷新到
+     * @param eventMap 之前得到的多事件映射, 新记录直接合并到其中的列表里
+     * @param queryRequests 与之前相同的查询请求列表
+     * @param sinceTimestamp 高水位, 即上一次刷新返回的值
+     * @return 新的高水位, 即合并的记录中最大的timestamp, 没有新记录时返回sinceTimestamp
+     */
+    long refreshSeveralTypeEventsByUserId(EventMap eventMap, List<QueryObject> queryRequests, long sinceTimestamp);
+
+    /**
+     * 增量刷新某个用户的全部类型事件
+     * @see #refreshSeveralTypeEventsByUserId(EventMap, List, long)
+     */
+    long refreshAllTypeEventByUserId(EventMap eventMap, String userId, Date start, Date end, long sinceTimestamp);
+
     /**
      * 获取通过事件发生日期排序的类型的事件
      */
@@ -85,6 +118,62 @@ public interface ElasticSearchService {
                                                  Date startDate,
                                                  Date endDate);
 
+    /**
+     * 单类型查询, 只获取实体的部分字段, 未获取的字段在实体中为默认值
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     * @see #getSpecificEventsByUserId(String, String, String, Class, Map, String, Date, Date)
+     */
+
+    <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 String[] includes,
+                                                 String[] excludes);
+
+    /**
+     * 流式的单类型查询, 逐页解析命中记录并立即交给sink, 不在内存中保存完整的事件列表
+     * 内存中最多只有一页记录, 与用户的事件数量无关, 适用于导出、分析等需要遍历大量事件的场景
+     * 事件按照orderFields的顺序依次交给sink, sink在查询线程中调用, sink抛出的异常会终止查询
+     * @param sink 接收每个事件
+     * @return 交给sink的事件数量
+     * @see #getSpecificEventsByUserId(String, String, String, Class, Map, String, Date, Date)
+     */
+
+    <T> long streamSpecificEventsByUserId(String userId,
+                                          String indexName,
+                                          String type,
+                                          Class<T> classType,
+                                          Map<String, SortOrder> orderFields,
+                                          String filterName,
+                                          Date startDate,
+                                          Date endDate,
+                                          Consumer<? super Event<T>> sink);
+
+    /**
+     * 流式的单类型查询, 只获取实体的部分字段
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     * @see #streamSpecificEventsByUserId(String, String, String, Class, Map, String, Date, Date, Consumer)
+     */
+
+    <T> long streamSpecificEventsByUserId(String userId,
+                                          String indexName,
+                                          String type,
+                                          Class<T> classType,
+                                          Map<String, SortOrder> orderFields,
+                                          String filterName,
+                                          Date startDate,
+                                          Date endDate,
+                                          String[] includes,
+                                          String[] excludes,
+                                          Consumer<? super Event<T>> sink);
+
     /**
      * 获取encounter事件，按照date来进行排序
      * @return 事件列表
@@ -109,6 +198,32 @@ public interface ElasticSearchService {
 
     List<Event<Observation>> getObservationEventsByUserId(String userId, Date startDate, Date endDate);
 
+    /**
+     * 获取observations的体征时间序列, 按照date升序排列, 每种体征按列存放在double数组中
+     * @param userId 用户的id
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @param signNames 需要的体征名称, 如glucose, 为空时获取全部体征
+     * @return 体征时间序列
+     */
+
+    ObservationSeries getObservationSeriesByUserId(String userId, Date startDate, Date endDate, String... signNames);
+
+    /**
+     * 在Elasticsearch服务端按时间区间统计observations的体征, 只返回每个区间的统计值, 不返回原始记录
+     * 例如每月的平均血糖: getObservationStatisticsByUserId(userId, start, end, DateHistogramInterval.MONTH, null, "glucose")
+     * @param userId 用户的id
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @param interval 时间区间, 如DateHistogramInterval.MONTH、DateHistogramInterval.YEAR
+     * @param percents 需要计算的百分位, 如{50, 95}, 为null时不计算百分位数
+     * @param signNames 需要统计的体征名称, 如glucose, 为空时统计全部体征
+     * @return 按时间升序排列的统计结果, 不包含没有观测的区间
+     */
+
+    ObservationStatistics getObservationStatisticsByUserId(String userId, Date startDate, Date endDate,
+                                                           DateHistogramInterval interval, double[] percents, String... signNames);
+
     /**
      * 获取medication事件，按照start(事件开始事件)来进行排序
      * @return 事件列表
@@ -1,58 +1,91 @@
 package com.iss.bigdata.health.elasticsearch.service;
 
-import com.alibaba.fastjson.JSON;
+import com.iss.bigdata.health.elasticsearch.client.ElasticSearchClientFactory;
 import com.iss.bigdata.health.elasticsearch.entity.*;
 import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
 import com.iss.bigdata.health.elasticsearch.help.QueryObject;
-import org.apache.http.HttpHost;
+import com.iss.bigdata.health.elasticsearch.metrics.MetricsRegistry;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHits;
-import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Created by dujijun on 2018/1/3.
  */
 public class ElasticSearchServiceImpl implements ElasticSearchService {
     private RestHighLevelClient client;
-    private static final int MAX_QUERY_SIZE = 10000;
+    private MetricsRegistry metrics = MetricsRegistry.NOOP;
+    private boolean routingByUserId;
 
+    /**
+     * 使用{@link ElasticSearchClientFactory#getSharedClient()}共享的客户端
+     */
     public ElasticSearchServiceImpl() {
-        this.client = new RestHighLevelClient(
-                RestClient.builder(
-                        new HttpHost("localhost", 9200, "http")
-                )
-        );
+        this(ElasticSearchClientFactory.getSharedClient());
+    }
+
+    /**
+     * @param client Elasticsearch客户端, 由调用者负责关闭
+     */
+    public ElasticSearchServiceImpl(RestHighLevelClient client) {
+        this.client = client;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    /**
+     * 设置记录查询指标的注册表, 默认不记录
+     * @param metrics 如{@link com.iss.bigdata.health.elasticsearch.metrics.SnapshotMetricsRegistry}
+     */
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        this.metrics = metrics == null ? MetricsRegistry.NOOP : metrics;
+    }
+
+    public boolean isRoutingByUserId() {
+        return routingByUserId;
+    }
+
+    /**
+     * 是否以user_id作为路由值查询, 默认不使用路由, 查询发送到索引的全部分片
+     * 开启后每个用户的查询只访问该用户所在的一个分片, 要求所有记录写入时都以user_id作为路由值
+     * @param routingByUserId 是否按照user_id路由
+     * @see com.iss.bigdata.health.elasticsearch.help.UserRouting
+     */
+    public void setRoutingByUserId(boolean routingByUserId) {
+        this.routingByUserId = routingByUserId;
     }
 
     
     @Override
     public EventMap getAllTypeEventByUserId(String userId, Date start, Date end){
-        List<QueryObject> startQueries = new ArrayList<>();
-        startQueries.add(new QueryObject(userId, "conditions", "synthea", Condition.class, start, end));
-        startQueries.add(new QueryObject(userId, "allergies", "synthea", Allergy.class, start, end));
-        startQueries.add(new QueryObject(userId, "careplans", "synthea", CarePlan.class, start, end));
-        startQueries.add(new QueryObject(userId, "medications", "synthea", Medication.class, start, end));
-
-        List<QueryObject> dateQueries = new ArrayList<>();
-        dateQueries.add(new QueryObject(userId, "observation", "synthea", Observation.class, start, end));
-        dateQueries.add(new QueryObject(userId, "immunizations", "synthea", Immunization.class, start, end));
-        dateQueries.add(new QueryObject(userId, "encounters", "synthea", Encounter.class, start, end));
-
-        EventMap events = new EventMap();
-        events.putAll(getMutiTypeEventsByUserIdOrderByDate(dateQueries));
-        events.putAll(getMutiTypeEventsByUserIdOrderByStart(startQueries));
-        return events;
+        // 两个排序键的查询在一次_msearch中发送
+        return severalTypeEvents("getAllTypeEventByUserId", EventSearches.allTypeQueries(userId, start, end));
+    }
+
+    /**
+     * 批量查询多个用户的全部类型事件, 多个用户合并为terms查询, 并通过一次_msearch发送
+     * @param userIds 用户id
+     * @param start 开始时间
+     * @param end 结束时间
+     * @return (用户id, 该用户的多事件映射), 没有任何事件的用户对应空的事件列表
+     */
+    @Override
+    public Map<String, EventMap> getAllTypeEventsByUserIds(Collection<String> userIds, Date start, Date end){
+        Map<String, EventMap> eventMaps = new HashMap<>();
+        searchAllPages("getAllTypeEventsByUserIds", EventSearches.multiUserSearches(eventMaps, userIds, start, end));
+        return eventMaps;
     }
 
     /**
@@ -62,12 +95,28 @@ public class ElasticSearchServiceImpl implements ElasticSearchService {
      */
     @Override
     public EventMap getSeveralTypeEventsByUserId(List<QueryObject> queryRequests){
-        Map<String, List<QueryObject>> queryGroup = queryRequests
-                                                        .stream()
-                                                        .collect(Collectors.groupingBy(q -> q.getFilterNameAndOrderKey()));
+        return severalTypeEvents("getSeveralTypeEventsByUserId", queryRequests);
+    }
+
+    @Override
+    public long refreshSeveralTypeEventsByUserId(EventMap eventMap, List<QueryObject> queryRequests, long sinceTimestamp){
+        EventMap delta = new EventMap();
+        LongAccumulator highWaterMark = new LongAccumulator(Math::max, sinceTimestamp);
+        searchAllPages("refreshSeveralTypeEventsByUserId", EventSearches.deltaSearches(delta, queryRequests,
+                sinceTimestamp == Long.MIN_VALUE ? null : sinceTimestamp, highWaterMark));
+        EventSearches.mergeDelta(eventMap, delta);
+        return highWaterMark.get();
+    }
+
+    @Override
+    public long refreshAllTypeEventByUserId(EventMap eventMap, String userId, Date start, Date end, long sinceTimestamp){
+        return refreshSeveralTypeEventsByUserId(eventMap, EventSearches.allTypeQueries(userId, start, end), sinceTimestamp);
+    }
+
+    private EventMap severalTypeEvents(String operation, List<QueryObject> queryRequests){
         EventMap resultMap = new EventMap();
-        resultMap.putAll(getMutiTypeEventsByUserIdOrderByDate(queryGroup.get("date")));
-        resultMap.putAll(getMutiTypeEventsByUserIdOrderByStart(queryGroup.get("start")));
+        // 每个排序键一个子查询, 通过_msearch在一次网络往返中发送
+        searchAllPages(operation, EventSearches.groupedSearches(resultMap, queryRequests));
         return resultMap;
     }
 
@@ -106,124 +155,13 @@ public class ElasticSearchServiceImpl implements ElasticSearchService {
     @Override
     public EventMap getMultiTypeEventsByUserId(List<QueryObject> queryRequests, String orderKey, SortOrder order){
         EventMap eventMap = new EventMap();
-        SearchRequest searchRequest = new SearchRequest();
-        List<String> indice = new ArrayList<>();
-
-        // 构建EventMap
-        buildEventMap(eventMap, queryRequests);
-
-        // 构建搜索语句
-        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
-
-        // 构建每一个Query的查询
-        for (QueryObject queryRequest : queryRequests) {
-            // 当排序键不一致时，抛出异常
-            if(!queryRequest.getFilterNameAndOrderKey().equals(orderKey))
-                throw new RuntimeException("使用错误，请保证参数中的所有排序键和查询对象中的排序键一直");
 
-            indice.add(queryRequest.getIndexName());
-            searchRequest.types(queryRequest.getType());
-
-            boolQueryBuilder.should(QueryBuilders
-                    .boolQuery()
-                    .must(QueryBuilders.termQuery("_index", queryRequest.getIndexName()))
-                    .must(QueryBuilders.termQuery("user_id.keyword", queryRequest.getUserId()))
-                    .must(QueryBuilders.rangeQuery(queryRequest.getFilterNameAndOrderKey())
-                                                                .from(queryRequest.getStart())
-                                                                .to(queryRequest.getEnd())));
-
-        }
-        // 设置查询索引
-        String[] indiceArr = new String[indice.size()];
-        indice.toArray(indiceArr);
-        searchRequest.indices(indiceArr);
-
-        // 设置结果集排序
-        sourceBuilder.sort(orderKey, order);
-        sourceBuilder.size(MAX_QUERY_SIZE);
-        sourceBuilder.query(boolQueryBuilder);
-
-        // 打印查询语句
-//        System.out.println(sourceBuilder.query());
-
-        searchRequest.source(sourceBuilder);
-
-
-        // 获取输出结果
-        SearchResponse searchResponse = null;
-        try {
-            searchResponse = client.search(searchRequest);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!");
-        }
-        for(SearchHit hit : searchResponse.getHits()){
-            putEachEventIntoList(eventMap, hit, orderKey);
-        }
+        // 分页获取全部输出结果
+        searchAllPages("getMultiTypeEventsByUserId", EventSearches.multiTypeSearches(eventMap, queryRequests, orderKey, order));
 
         return eventMap;
     }
 
-    // 构建对应事件信息列表
-    private void putEachEventIntoList(EventMap eventMap, SearchHit hit, String orderKey) {
-        Date date = JSON.parseObject(hit.getSourceAsString()).getDate(orderKey);
-        switch (hit.getIndex()) {
-            case "allergies":
-                eventMap.getEventList(Allergy.class, "allergies")
-                        .add(new Event<>(hit.getId(),
-                                         JSON.parseObject(hit.getSourceAsString(),
-                                                 Allergy.class), date));
-                break;
-            case "encounters":
-                eventMap.getEventList(Encounter.class, "encounters")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        Encounter.class), date));
-                break;
-            case "conditions":
-                eventMap.getEventList(Condition.class, "conditions")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        Condition.class), date));
-                break;
-            case "medications":
-                eventMap.getEventList(Medication.class, "medications")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        Medication.class), date));
-                break;
-            case "immunizations":
-                eventMap.getEventList(Immunization.class, "immunizations")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        Immunization.class), date));
-                break;
-            case "observation":
-                eventMap.getEventList(Observation.class, "observation")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        Observation.class), date));
-                break;
-            case "careplans":
-                eventMap.getEventList(CarePlan.class, "careplans")
-                        .add(new Event<>(hit.getId(),
-                                JSON.parseObject(hit.getSourceAsString(),
-                                        CarePlan.class), date));
-                break;
-
-        }
-    }
-
-    private void buildEventMap(EventMap map, List<QueryObject> queryRequests){
-        for(QueryObject q : queryRequests)
-            map.put(q.getIndexName(), createResultList(q.getClassType()));
-    }
-
-    private <T> List<T> createResultList(Class<T> classType){
-        return new ArrayList<>();
-    }
-
     /**
      * 不排序的EventList
      * @param userId 用户的id
@@ -269,39 +207,100 @@ public class ElasticSearchServiceImpl implements ElasticSearchService {
                                                         String filterName,
                                                         Date startDate,
                                                         Date endDate){
+        return getSpecificEventsByUserId(userId, indexName, type, classType,
+                                         orderFields, filterName, startDate, endDate, null, null);
+    }
+
+    /**
+     * 单类型查询, 只获取实体的部分字段, 未获取的字段在实体中为默认值
+     * @param includes 需要返回的_source字段, 支持通配符, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     * @see #getSpecificEventsByUserId(String, String, String, Class, Map, String, Date, Date)
+     */
+
+    @Override
+    public <T> List<Event<T>> getSpecificEventsByUserId(String userId,
+                                                        String indexName,
+                                                        String type,
+                                                        Class<T> classType,
+                                                        Map<String, SortOrder> orderFields,
+                                                        String filterName,
+                                                        Date startDate,
+                                                        Date endDate,
+                                                        String[] includes,
+                                                        String[] excludes){
         List<Event<T>> events = new ArrayList<>();
 
-        SearchRequest searchRequest = new SearchRequest(indexName);
-        searchRequest.types(type);
+        // 分页发送搜索请求并分析获取结果
+        searchAllPages("getSpecificEventsByUserId", Collections.singletonList(EventSearches.specificSearch(events::add, userId, indexName, type, classType,
+                                                                              orderFields, filterName, startDate, endDate,
+                                                                              includes, excludes)));
+        return events;
+    }
 
-        // 构建搜索语句
-        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 Consumer<? super Event<T>> sink){
+        return streamSpecificEventsByUserId(userId, indexName, type, classType,
+                                            orderFields, filterName, startDate, endDate, null, null, sink);
+    }
+
+    @Override
+    public <T> long streamSpecificEventsByUserId(String userId,
+                                                 String indexName,
+                                                 String type,
+                                                 Class<T> classType,
+                                                 Map<String, SortOrder> orderFields,
+                                                 String filterName,
+                                                 Date startDate,
+                                                 Date endDate,
+                                                 String[] includes,
+                                                 String[] excludes,
+                                                 Consumer<? super Event<T>> sink){
+        LongAdder count = new LongAdder();
+        Consumer<Event<T>> counting = event -> {
+            sink.accept(event);
+            count.increment();
+        };
+        searchAllPages("streamSpecificEventsByUserId", Collections.singletonList(EventSearches.specificSearch(counting, userId, indexName, type, classType,
+                                                                                 orderFields, filterName, startDate, endDate,
+                                                                                 includes, excludes)));
+        return count.sum();
+    }
 
-        // 使用bool组合查询
-        sourceBuilder.query(QueryBuilders.boolQuery()
-                                        .must(QueryBuilders.termQuery("user_id.keyword", userId))
-                                        .must(QueryBuilders.rangeQuery(filterName).from(startDate).to(endDate)));
-        // 按照所选字段和顺序进行排序
-        orderFields.forEach(sourceBuilder::sort);
-        sourceBuilder.size(MAX_QUERY_SIZE);
+    /**
+     * 同步地逐页发送查询, 直到拉取完整的结果集
+     * 多个查询时每一轮通过_msearch一起发送所有还有下一页的查询
+     * @param operation 服务方法名, 用于记录查询指标
+     * @param pagedSearches 分页查询
+     */
+    private void searchAllPages(String operation, List<PagedSearch> pagedSearches) {
+        if (routingByUserId)
+            pagedSearches.forEach(PagedSearch::routeByUserId);
+        List<PagedSearch> pending = pagedSearches;
+        while (!pending.isEmpty()) {
+            long startNanos = System.nanoTime();
+            List<SearchResponse> responses = search(PagedSearch.requests(pending));
+            pending = PagedSearch.consumeAll(pending, responses, metrics, operation, System.nanoTime() - startNanos);
+        }
+    }
 
-        // 发送搜索请求并分析获取结果
-        searchRequest.source(sourceBuilder);
-//        searchRequest.scroll(TimeValue.timeValueSeconds(30));
-        SearchResponse result = null;
+    private List<SearchResponse> search(List<SearchRequest> searchRequests) {
         try {
-            result = client.search(searchRequest);
+            if (searchRequests.size() == 1)
+                return Collections.singletonList(client.search(searchRequests.get(0)));
+            return MultiSearch.search(client.getLowLevelClient(), searchRequests);
         } catch (IOException e) {
             e.printStackTrace();
-            throw new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!");
+            throw new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!", e);
         }
-        SearchHits hits = result.getHits();
-        for (SearchHit hit : hits.getHits()){
-            T t = JSON.parseObject(hit.getSourceAsString(), classType);
-            Date date = JSON.parseObject(hit.getSourceAsString()).getDate(filterName);
-            events.add(new Event<>(hit.getId(), t, date));
-        }
-        return events;
     }
 
     /**
@@ -365,6 +364,40 @@ public class ElasticSearchServiceImpl implements ElasticSearchService {
         );
     }
 
+    /**
+     * 获取observations的体征时间序列, 按照date升序排列, 只获取需要的体征字段
+     * @param userId 用户的id
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @param signNames 需要的体征名称, 如glucose, 为空时获取全部体征
+     * @return 体征时间序列
+     */
+
+    @Override
+    public ObservationSeries getObservationSeriesByUserId(String userId, Date startDate, Date endDate, String... signNames){
+        ObservationSeries.Builder seriesBuilder = new ObservationSeries.Builder(signNames);
+        searchAllPages("getObservationSeriesByUserId", Collections.singletonList(
+                EventSearches.observationSeriesSearch(seriesBuilder, userId, startDate, endDate)));
+        return seriesBuilder.build();
+    }
+
+    @Override
+    public ObservationStatistics getObservationStatisticsByUserId(String userId, Date startDate, Date endDate,
+                                                                  DateHistogramInterval interval, double[] percents, String... signNames){
+        String[] signs = ObservationAggregations.signNamesOrAll(signNames);
+        SearchRequest searchRequest = ObservationAggregations.request(userId, startDate, endDate, interval, percents, signs);
+        if (routingByUserId)
+            searchRequest.routing(userId);
+        long startNanos = System.nanoTime();
+        SearchResponse response = search(Collections.singletonList(searchRequest)).get(0);
+        long decodeStart = System.nanoTime();
+        ObservationStatistics statistics = ObservationAggregations.parse(response, interval, percents, signs);
+        metrics.recordRequest("getObservationStatisticsByUserId", "observation", decodeStart - startNanos);
+        metrics.recordSearch("getObservationStatisticsByUserId", "observation",
+                response.getTook().millis(), 0, 0, System.nanoTime() - decodeStart);
+        return statistics;
+    }
+
     /**
      * 获取medication事件，按照start(事件开始事件)来进行排序
      * @return 事件列表
@@ -0,0 +1,166 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.Event;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 按需分页的事件发布者, 订阅者请求事件时才向Elasticsearch拉取下一页
+ * 每个订阅者各自执行一次完整的分页查询; 内存中最多缓存一页已解析、尚未交给订阅者的事件,
+ * 只有缓存取空并且订阅者还有未满足的请求数时才发送下一页的查询, 因此慢的订阅者会使查询随之暂停
+ * 订阅时只调用onSubscribe, 分页查询在第一次拉取时才构建, 构建失败通过onError通知订阅者
+ * 订阅者的回调不会并发调用, 但可能在调用request的线程或解析结果的线程中调用
+ */
+class EventPublisher<T> implements Publisher<Event<T>> {
+    private final Function<Consumer<Event<T>>, PagedSearch> searchFactory;
+    private final Function<PagedSearch, CompletableFuture<Boolean>> pageFetcher;
+
+    /**
+     * @param searchFactory 以接收事件的sink构建分页查询, 每个订阅者在第一次拉取时构建一次
+     * @param pageFetcher 发送分页查询的当前页并处理结果, 返回是否还有下一页
+     */
+    EventPublisher(Function<Consumer<Event<T>>, PagedSearch> searchFactory,
+                   Function<PagedSearch, CompletableFuture<Boolean>> pageFetcher) {
+        this.searchFactory = searchFactory;
+        this.pageFetcher = pageFetcher;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Event<T>> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber不能为null");
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * 一个订阅者的订阅, 所有对订阅者的调用都在drain中串行执行
+     */
+    private final class EventSubscription implements Subscription {
+        private final Subscriber<? super Event<T>> subscriber;
+        private final Queue<Event<T>> buffer = new ConcurrentLinkedQueue<>();
+        /** 第一次拉取时构建, 只在drain中访问 */
+        private PagedSearch pagedSearch;
+        /** 订阅者请求了但还没有交付的事件数 */
+        private final AtomicLong demand = new AtomicLong();
+        /** 等待执行的drain次数, 不为0时已经有线程在执行drain */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile boolean fetching;
+        private volatile boolean exhausted;
+        private volatile Throwable error;
+        // 只在drain中访问
+        private boolean terminated;
+
+        EventSubscription(Subscriber<? super Event<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                error = new IllegalArgumentException("请求的事件数必须大于0: " + n);
+            else
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0)
+                return;
+            int missed = 1;
+            do {
+                if (!terminated)
+                    emit();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (true) {
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+                if (error != null) {
+                    terminate();
+                    subscriber.onError(error);
+                    return;
+                }
+                if (demand.get() == 0)
+                    break;
+                Event<T> event = buffer.poll();
+                if (event == null)
+                    break;
+                try {
+                    subscriber.onNext(event);
+                } catch (RuntimeException e) {
+                    // 订阅者的onNext不应抛出异常, 抛出时视为取消订阅
+                    cancelled = true;
+                    continue;
+                }
+                if (demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+            }
+
+            // 先检查fetching再检查缓存, 上一页的事件先于fetching复位放入缓存
+            if (fetching || !buffer.isEmpty())
+                return;
+            if (exhausted) {
+                terminate();
+                subscriber.onComplete();
+            } else if (demand.get() > 0) {
+                fetching = true;
+                fetchNextPage();
+            }
+        }
+
+        private void fetchNextPage() {
+            CompletableFuture<Boolean> page;
+            try {
+                if (pagedSearch == null)
+                    pagedSearch = searchFactory.apply(this::offer);
+                page = pageFetcher.apply(pagedSearch);
+            } catch (RuntimeException e) {
+                page = new CompletableFuture<>();
+                page.completeExceptionally(e);
+            }
+            page.whenComplete((hasNext, e) -> {
+                if (e != null)
+                    error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                else
+                    exhausted = !hasNext;
+                fetching = false;
+                drain();
+            });
+        }
+
+        // 取消之后仍在解析的页不再放入缓存
+        private void offer(Event<T> event) {
+            if (!cancelled)
+                buffer.add(event);
+        }
+
+        private void terminate() {
+            terminated = true;
+            buffer.clear();
+        }
+    }
+}
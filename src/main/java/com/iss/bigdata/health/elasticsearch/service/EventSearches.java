@@ -0,0 +1,455 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.alibaba.fastjson.JSONObject;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import com.iss.bigdata.health.elasticsearch.help.SourceDecoder;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 事件查询的构建与结果解析, 由同步和异步的服务实现共用
+ */
+final class EventSearches {
+    /** 用户id的keyword字段, 既用于过滤也作为docvalue_field返回, 用于批量查询时区分每条记录所属的用户 */
+    static final String USER_ID_KEY = "user_id.keyword";
+    /** 记录写入时间的字段, 增量刷新时只查询该字段不早于高水位减去REFRESH_OVERLAP的记录 */
+    static final String TIMESTAMP_KEY = "timestamp";
+    /**
+     * 增量刷新时向高水位之前多查询的timestamp范围, 单位与timestamp字段相同(synthea写入的是秒)
+     * 与高水位同一时刻或稍早写入、但上一次刷新时还不可见的记录会被重新查询到, 重复的记录按照id去重
+     */
+    static final long REFRESH_OVERLAP = 1;
+    /** 批量查询多个用户时每个terms查询包含的用户数 */
+    static final int USER_BATCH_SIZE = 200;
+
+    private EventSearches() {
+    }
+
+    /**
+     * 全部时间线事件类型的查询, 事件类型及其排序键来自{@link EventTypeRegistry}
+     */
+    static List<QueryObject> allTypeQueries(String userId, Date start, Date end) {
+        List<QueryObject> queries = new ArrayList<>();
+        for (EventTypeRegistry.Entry<?> eventType : EventTypeRegistry.timelineTypes())
+            queries.add(new QueryObject(userId, eventType.getIndexName(), "synthea", eventType.getClassType(), start, end));
+        return queries;
+    }
+
+    /**
+     * 按照排序键将查询分组, 每组构建一个多类型查询, 所有查询结果都放入同一个eventMap中
+     * @param eventMap 存放结果的事件映射
+     * @param queryRequests 查询请求对象
+     * @return 每个排序键对应的分页查询
+     */
+    static List<PagedSearch> groupedSearches(EventMap eventMap, List<QueryObject> queryRequests) {
+        return groupedSearches(eventMap, queryRequests, null, null);
+    }
+
+    /**
+     * 增量查询, 与{@link #groupedSearches(EventMap, List)}相同, 但只查询timestamp不早于sinceTimestamp - REFRESH_OVERLAP的记录
+     * @param delta 存放新记录的事件映射
+     * @param queryRequests 查询请求对象
+     * @param sinceTimestamp 高水位, 为null时不限制timestamp
+     * @param highWaterMark 接收每条命中记录的timestamp
+     * @return 每个排序键对应的分页查询
+     */
+    static List<PagedSearch> deltaSearches(EventMap delta, List<QueryObject> queryRequests,
+                                           Long sinceTimestamp, LongAccumulator highWaterMark) {
+        return groupedSearches(delta, queryRequests, sinceTimestamp, highWaterMark);
+    }
+
+    private static List<PagedSearch> groupedSearches(EventMap eventMap, List<QueryObject> queryRequests,
+                                                     Long sinceTimestamp, LongAccumulator highWaterMark) {
+        Map<String, List<QueryObject>> queryGroup = queryRequests
+                                                        .stream()
+                                                        .collect(Collectors.groupingBy(q -> q.getFilterNameAndOrderKey()));
+        List<PagedSearch> searches = new ArrayList<>();
+        queryGroup.forEach((orderKey, queries) ->
+                searches.addAll(multiTypeSearches(eventMap, queries, orderKey, SortOrder.DESC, sinceTimestamp, highWaterMark)));
+        return searches;
+    }
+
+    /**
+     * 将增量查询得到的新记录按照日期合并到eventMap中已排好序的列表里, 列表对象本身保持不变
+     * id相同的记录以新记录为准, 旧记录被移除
+     * @param eventMap 每种事件的列表都按照日期降序排列
+     * @param delta 增量查询的结果, 同样按照日期降序排列
+     */
+    static void mergeDelta(EventMap eventMap, EventMap delta) {
+        for (String indexName : delta.keySet()) {
+            List<Event<Object>> newer = delta.getEventList(Object.class, indexName);
+            List<Event<Object>> events = eventMap.getEventList(Object.class, indexName);
+            if (events == null)
+                eventMap.put(indexName, newer);
+            else if (!newer.isEmpty())
+                mergeDescending(events, newer);
+        }
+    }
+
+    private static <T> void mergeDescending(List<Event<T>> events, List<Event<T>> newer) {
+        Set<String> newerIds = new HashSet<>();
+        for (Event<T> event : newer)
+            newerIds.add(event.getEventId());
+
+        List<Event<T>> merged = new ArrayList<>(events.size() + newer.size());
+        int i = 0, j = 0;
+        while (i < events.size() || j < newer.size()) {
+            if (i < events.size() && newerIds.contains(events.get(i).getEventId())) {
+                i++;
+                continue;
+            }
+            // 日期相同时旧记录在前, 没有日期的记录排在最后
+            if (j >= newer.size() || (i < events.size() && !after(newer.get(j).getDateMillis(), events.get(i).getDateMillis())))
+                merged.add(events.get(i++));
+            else
+                merged.add(newer.get(j++));
+        }
+        events.clear();
+        events.addAll(merged);
+    }
+
+    private static boolean after(long millis, long other) {
+        if (millis == EpochMillis.NONE)
+            return false;
+        return other == EpochMillis.NONE || millis > other;
+    }
+
+    /**
+     * 构建多用户的全部事件类型查询
+     * 用户按USER_BATCH_SIZE分批, 每一批用户的每个排序键构建一个terms查询, 命中记录按照user_id放入对应用户的EventMap中
+     * @param eventMaps 存放结果的(用户id, 事件映射), 会为每个用户创建好全部事件类型的列表
+     * @param userIds 用户id
+     * @param start 开始时间
+     * @param end 结束时间
+     * @return 每一批用户每个排序键对应的分页查询
+     */
+    static List<PagedSearch> multiUserSearches(Map<String, EventMap> eventMaps, Collection<String> userIds, Date start, Date end) {
+        List<QueryObject> allQueries = allTypeQueries(null, start, end);
+        Map<String, List<QueryObject>> queryGroup = allQueries
+                                                        .stream()
+                                                        .collect(Collectors.groupingBy(q -> q.getFilterNameAndOrderKey()));
+        for (String userId : userIds)
+            if (!eventMaps.containsKey(userId)) {
+                EventMap eventMap = new EventMap();
+                buildEventMap(eventMap, allQueries);
+                eventMaps.put(userId, eventMap);
+            }
+
+        List<String> distinctUserIds = new ArrayList<>(eventMaps.keySet());
+        List<PagedSearch> searches = new ArrayList<>();
+        for (int from = 0; from < distinctUserIds.size(); from += USER_BATCH_SIZE) {
+            List<String> batch = distinctUserIds.subList(from, Math.min(from + USER_BATCH_SIZE, distinctUserIds.size()));
+            queryGroup.forEach((orderKey, queries) ->
+                    searches.add(multiUserSearch(eventMaps, batch, queries, orderKey)));
+        }
+        return searches;
+    }
+
+    private static PagedSearch multiUserSearch(Map<String, EventMap> eventMaps, List<String> userIds,
+                                               List<QueryObject> queryRequests, String orderKey) {
+        SearchRequest searchRequest = new SearchRequest();
+        List<String> indice = new ArrayList<>();
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+
+        for (QueryObject queryRequest : queryRequests) {
+            indice.add(queryRequest.getIndexName());
+            searchRequest.types(queryRequest.getType());
+
+            boolQueryBuilder.should(QueryBuilders
+                    .boolQuery()
+                    .must(QueryBuilders.termQuery("_index", queryRequest.getIndexName()))
+                    .must(QueryBuilders.termsQuery(USER_ID_KEY, userIds))
+                    .must(QueryBuilders.rangeQuery(orderKey)
+                                                .from(queryRequest.getStart())
+                                                .to(queryRequest.getEnd())));
+        }
+        searchRequest.indices(indice.toArray(new String[indice.size()]));
+
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(boolQueryBuilder)
+                .docValueField(USER_ID_KEY)
+                .sort(orderKey, SortOrder.DESC);
+
+        return new PagedSearch(searchRequest, sourceBuilder, hit -> {
+            DocumentField userId = hit.field(USER_ID_KEY);
+            EventMap eventMap = userId == null ? null : eventMaps.get(userId.getValue());
+            if (eventMap != null)
+                putEachEventIntoList(eventMap, hit);
+        }).userIds(userIds);
+    }
+
+    /**
+     * 单一排序键的排序方式
+     */
+    static Map<String, SortOrder> orderBy(String orderKey, SortOrder order) {
+        Map<String, SortOrder> fieldOrder = new HashMap<>();
+        fieldOrder.put(orderKey, order);
+        return fieldOrder;
+    }
+
+    /**
+     * 构建多类型查询, 查询结果会放入eventMap中以索引名为key的事件列表里
+     * 一次查询只能指定一种_source字段过滤方式, 因此字段过滤方式不同的查询对象会拆分为多个查询
+     * 注意：传入的List中的查询对象的排序键和参数中的排序键必须相同，否则会抛出异常
+     * @param eventMap 存放结果的事件映射
+     * @param queryRequests 查询请求对象
+     * @param orderKey 排序键
+     * @param order 排序方式
+     * @return 每种字段过滤方式对应的分页查询
+     */
+    static List<PagedSearch> multiTypeSearches(EventMap eventMap, List<QueryObject> queryRequests, String orderKey, SortOrder order) {
+        return multiTypeSearches(eventMap, queryRequests, orderKey, order, null, null);
+    }
+
+    private static List<PagedSearch> multiTypeSearches(EventMap eventMap, List<QueryObject> queryRequests, String orderKey, SortOrder order,
+                                                       Long sinceTimestamp, LongAccumulator highWaterMark) {
+        Map<String, List<QueryObject>> projectionGroup = new LinkedHashMap<>();
+        for (QueryObject queryRequest : queryRequests)
+            projectionGroup.computeIfAbsent(projectionKey(queryRequest), k -> new ArrayList<>()).add(queryRequest);
+
+        List<PagedSearch> searches = new ArrayList<>();
+        for (List<QueryObject> queries : projectionGroup.values())
+            searches.add(multiTypeSearch(eventMap, queries, orderKey, order, sinceTimestamp, highWaterMark));
+        return searches;
+    }
+
+    // null与空数组都表示不过滤, 字段的先后顺序也不影响_source过滤的结果
+    private static String projectionKey(QueryObject<?> queryRequest) {
+        if (!queryRequest.hasProjection())
+            return "";
+        return sortedFields(queryRequest.getIncludes()) + sortedFields(queryRequest.getExcludes());
+    }
+
+    private static String sortedFields(String[] fields) {
+        if (fields == null)
+            return "[]";
+        String[] sorted = fields.clone();
+        Arrays.sort(sorted);
+        return Arrays.toString(sorted);
+    }
+
+    private static PagedSearch multiTypeSearch(EventMap eventMap, List<QueryObject> queryRequests, String orderKey, SortOrder order,
+                                               Long sinceTimestamp, LongAccumulator highWaterMark) {
+        SearchRequest searchRequest = new SearchRequest();
+        List<String> indice = new ArrayList<>();
+
+        // 构建EventMap
+        buildEventMap(eventMap, queryRequests);
+
+        // 构建搜索语句
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+
+        // 构建每一个Query的查询
+        for (QueryObject queryRequest : queryRequests) {
+            // 当排序键不一致时，抛出异常
+            if(!queryRequest.getFilterNameAndOrderKey().equals(orderKey))
+                throw new RuntimeException("使用错误，请保证参数中的所有排序键和查询对象中的排序键一直");
+
+            indice.add(queryRequest.getIndexName());
+            searchRequest.types(queryRequest.getType());
+
+            BoolQueryBuilder typeQuery = QueryBuilders
+                    .boolQuery()
+                    .must(QueryBuilders.termQuery("_index", queryRequest.getIndexName()))
+                    .must(QueryBuilders.termQuery("user_id.keyword", queryRequest.getUserId()))
+                    .must(QueryBuilders.rangeQuery(queryRequest.getFilterNameAndOrderKey())
+                                                                .from(queryRequest.getStart())
+                                                                .to(queryRequest.getEnd()));
+            // 增量查询获取高水位之后写入的记录, 包含高水位本身并向前重叠一段, 避免漏掉同一时刻写入但当时还未刷新可见的记录
+            if (sinceTimestamp != null)
+                typeQuery.must(QueryBuilders.rangeQuery(TIMESTAMP_KEY).gte(sinceTimestamp - REFRESH_OVERLAP));
+            boolQueryBuilder.should(typeQuery);
+
+        }
+        // 设置查询索引
+        String[] indiceArr = new String[indice.size()];
+        indice.toArray(indiceArr);
+        searchRequest.indices(indiceArr);
+
+        // 设置结果集排序
+        sourceBuilder.sort(orderKey, order);
+        sourceBuilder.query(boolQueryBuilder);
+
+        // 同一组查询对象的字段过滤方式相同
+        QueryObject projection = queryRequests.get(0);
+        if (projection.hasProjection())
+            sourceBuilder.fetchSource(projection.getIncludes(), projection.getExcludes());
+
+        // 打印查询语句
+//        System.out.println(sourceBuilder.query());
+
+        // 预先解析每个索引对应的事件类型和结果列表, 解析每条命中记录时只需要一次查找
+        Map<String, EventSink<?>> sinks = new HashMap<>();
+        Set<String> userIds = new HashSet<>();
+        for (QueryObject queryRequest : queryRequests) {
+            sinks.put(queryRequest.getIndexName(), EventSink.of(eventMap, queryRequest.getIndexName()));
+            userIds.add(queryRequest.getUserId());
+        }
+
+        if (highWaterMark != null)
+            sourceBuilder.docValueField(TIMESTAMP_KEY);
+
+        return new PagedSearch(searchRequest, sourceBuilder, hit -> {
+            EventSink<?> sink = sinks.get(hit.getIndex());
+            if (sink != null)
+                sink.add(hit, SourceDecoder.readSortMillis(hit, 0));
+            DocumentField timestamp = highWaterMark == null ? null : hit.field(TIMESTAMP_KEY);
+            if (timestamp != null && timestamp.getValue() instanceof Number)
+                highWaterMark.accumulate(((Number) timestamp.getValue()).longValue());
+        }).userIds(userIds);
+    }
+
+    /**
+     * 构建单类型查询, 查询结果按照排序依次交给sink
+     * @param sink 接收每个事件, 如结果列表的add方法
+     * @param userId 用户的id
+     * @param indexName 索引名——即事件名
+     * @param type 索引类型，一般统一为synthea
+     * @param classType 需要获取事件实体的Class的类型
+     * @param orderFields Map<String, SortOrder> (排序列名, 顺序)
+     * @param filterName 过滤域名称
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @param includes 需要返回的_source字段, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     * @return 分页查询
+     */
+    static <T> PagedSearch specificSearch(Consumer<? super Event<T>> sink,
+                                          String userId,
+                                          String indexName,
+                                          String type,
+                                          Class<T> classType,
+                                          Map<String, SortOrder> orderFields,
+                                          String filterName,
+                                          Date startDate,
+                                          Date endDate,
+                                          String[] includes,
+                                          String[] excludes) {
+        SearchRequest searchRequest = new SearchRequest(indexName);
+        searchRequest.types(type);
+
+        // 构建搜索语句
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+
+        // 使用bool组合查询
+        sourceBuilder.query(QueryBuilders.boolQuery()
+                                        .must(QueryBuilders.termQuery("user_id.keyword", userId))
+                                        .must(QueryBuilders.rangeQuery(filterName).from(startDate).to(endDate)));
+        // 按照所选字段和顺序进行排序, 并记录过滤域在排序值中的位置, 事件日期直接从排序值中获取
+        int dateSortIndex = -1;
+        for (Map.Entry<String, SortOrder> orderField : orderFields.entrySet()) {
+            if (orderField.getKey().equals(filterName))
+                dateSortIndex = sourceBuilder.sorts() == null ? 0 : sourceBuilder.sorts().size();
+            sourceBuilder.sort(orderField.getKey(), orderField.getValue());
+        }
+        // 过滤域不在排序键中时, 追加为最后一个排序键
+        if (dateSortIndex < 0) {
+            dateSortIndex = orderFields.size();
+            sourceBuilder.sort(filterName, SortOrder.ASC);
+        }
+
+        // 只获取需要的字段, 减少返回的数据量和解析时间
+        if (includes != null || excludes != null)
+            sourceBuilder.fetchSource(includes, excludes);
+
+        final int dateIndex = dateSortIndex;
+        EventTypeRegistry.HitDecoder<T> decoder = EventTypeRegistry.decoderFor(indexName, classType);
+        return new PagedSearch(searchRequest, sourceBuilder,
+                hit -> sink.accept(new Event<>(hit.getId(), decoder.decode(hit), SourceDecoder.readSortMillis(hit, dateIndex))))
+                .userIds(Collections.singleton(userId));
+    }
+
+    /**
+     * 构建某个用户的Observation体征序列查询, 按时间升序排列, 只获取需要的体征字段
+     * @param seriesBuilder 接收每次观测的序列构建器
+     * @param userId 用户的id
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @return 分页查询
+     */
+    static PagedSearch observationSeriesSearch(ObservationSeries.Builder seriesBuilder, String userId, Date startDate, Date endDate) {
+        SearchRequest searchRequest = new SearchRequest("observation");
+        searchRequest.types("synthea");
+
+        String[] includes = new String[seriesBuilder.getSignNames().length];
+        for (int i = 0; i < includes.length; i++)
+            includes[i] = "signs." + seriesBuilder.getSignNames()[i];
+
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.termQuery(USER_ID_KEY, userId))
+                        .must(QueryBuilders.rangeQuery("date").from(startDate).to(endDate)))
+                .sort("date", SortOrder.ASC)
+                .fetchSource(includes, null);
+
+        return new PagedSearch(searchRequest, sourceBuilder, hit -> {
+            long millis = SourceDecoder.readSortMillis(hit, 0);
+            if (millis == EpochMillis.NONE)
+                return;
+            JSONObject source = SourceDecoder.decodeObject(hit);
+            seriesBuilder.add(millis, source == null ? null : source.getJSONObject("signs"));
+        }).userIds(Collections.singleton(userId));
+    }
+
+    // 构建对应事件信息列表
+    private static void putEachEventIntoList(EventMap eventMap, SearchHit hit) {
+        EventSink<?> sink = EventSink.of(eventMap, hit.getIndex());
+        if (sink != null)
+            // 排序键是第一个排序值
+            sink.add(hit, SourceDecoder.readSortMillis(hit, 0));
+    }
+
+    /**
+     * 某个索引的事件类型和存放结果的事件列表
+     */
+    private static final class EventSink<T> {
+        private final EventTypeRegistry.Entry<T> eventType;
+        private final List<Event<T>> events;
+
+        private EventSink(EventTypeRegistry.Entry<T> eventType, List<Event<T>> events) {
+            this.eventType = eventType;
+            this.events = events;
+        }
+
+        /**
+         * @return 索引未注册或eventMap中没有对应的列表时返回null
+         */
+        static EventSink<?> of(EventMap eventMap, String indexName) {
+            EventTypeRegistry.Entry<?> eventType = EventTypeRegistry.get(indexName);
+            return eventType == null ? null : of(eventMap, indexName, eventType);
+        }
+
+        private static <T> EventSink<T> of(EventMap eventMap, String indexName, EventTypeRegistry.Entry<T> eventType) {
+            List<Event<T>> events = eventMap.getEventList(eventType.getClassType(), indexName);
+            return events == null ? null : new EventSink<>(eventType, events);
+        }
+
+        void add(SearchHit hit, long dateMillis) {
+            events.add(eventType.toEvent(hit, dateMillis));
+        }
+    }
+
+    private static void buildEventMap(EventMap map, List<QueryObject> queryRequests){
+        for(QueryObject q : queryRequests)
+            map.put(q.getIndexName(), createResultList(q.getClassType()));
+    }
+
+    private static <T> List<T> createResultList(Class<T> classType){
+        return new ArrayList<>();
+    }
+}
@@ -0,0 +1,178 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 通过_msearch接口在一次网络往返中发送多个查询
+ * 6.1版本的RestHighLevelClient没有提供multiSearch方法, 因此使用底层的RestClient发送请求并逐个解析子查询的结果
+ * 注意：子查询的结果使用空的NamedXContentRegistry解析, 不支持聚合查询
+ */
+final class MultiSearch {
+    private static final String ENDPOINT = "/_msearch";
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    private MultiSearch() {
+    }
+
+    /**
+     * 同步发送多个查询
+     * @param restClient 底层客户端
+     * @param requests 查询请求
+     * @return 与请求一一对应的查询结果
+     */
+    static List<SearchResponse> search(RestClient restClient, List<SearchRequest> requests) throws IOException {
+        Response response = restClient.performRequest("POST", ENDPOINT, Collections.emptyMap(), toEntity(requests));
+        return parse(response, requests.size());
+    }
+
+    /**
+     * 异步发送多个查询
+     * @param restClient 底层客户端
+     * @param requests 查询请求
+     * @param listener 接收与请求一一对应的查询结果
+     */
+    static void searchAsync(RestClient restClient, List<SearchRequest> requests, ActionListener<List<SearchResponse>> listener) {
+        HttpEntity entity;
+        try {
+            entity = toEntity(requests);
+        } catch (IOException e) {
+            listener.onFailure(e);
+            return;
+        }
+        restClient.performRequestAsync("POST", ENDPOINT, Collections.emptyMap(), entity, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                List<SearchResponse> responses;
+                try {
+                    responses = parse(response, requests.size());
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                // 与ActionListener.wrap一致, 处理结果时抛出的异常交给onFailure, 避免在IO线程中丢失
+                try {
+                    listener.onResponse(responses);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    // 每个子查询占两行: 请求头(索引、类型、路由)与查询语句
+    private static HttpEntity toEntity(List<SearchRequest> requests) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (SearchRequest request : requests) {
+            XContentBuilder header = XContentFactory.jsonBuilder().startObject();
+            if (request.indices().length > 0)
+                header.field("index", String.join(",", request.indices()));
+            if (request.types().length > 0)
+                header.field("type", String.join(",", request.types()));
+            if (request.routing() != null)
+                header.field("routing", request.routing());
+            if (request.preference() != null)
+                header.field("preference", request.preference());
+            header.endObject().bytes().writeTo(body);
+            body.write('\n');
+
+            XContentBuilder source = XContentFactory.jsonBuilder();
+            request.source().toXContent(source, ToXContent.EMPTY_PARAMS);
+            source.bytes().writeTo(body);
+            body.write('\n');
+        }
+        return new ByteArrayEntity(body.toByteArray(), NDJSON);
+    }
+
+    private static List<SearchResponse> parse(Response response, int size) throws IOException {
+        // 先读入内存, 子查询失败时重新解析以获取错误信息, 成功时只解析一遍
+        byte[] body = EntityUtils.toByteArray(response.getEntity());
+        List<SearchResponse> responses = new ArrayList<>(size);
+        try (XContentParser parser = responsesParser(body)) {
+            for (int i = 0; i < size; i++) {
+                SearchResponse searchResponse = SearchResponse.fromXContent(parser);
+                // 失败的子查询只有error和status, 解析后没有hits
+                if (searchResponse.getHits() == null)
+                    throw failure(body, i);
+                responses.add(searchResponse);
+            }
+        }
+        return responses;
+    }
+
+    // 创建解析器并定位到 {"responses": [
+    private static XContentParser responsesParser(byte[] body) throws IOException {
+        XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, body);
+        parser.nextToken();
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME && !"responses".equals(parser.currentName())) {
+            parser.nextToken();
+            parser.skipChildren();
+        }
+        if (parser.currentToken() != XContentParser.Token.FIELD_NAME || parser.nextToken() != XContentParser.Token.START_ARRAY) {
+            parser.close();
+            throw new IOException("无法解析_msearch的返回结果");
+        }
+        return parser;
+    }
+
+    /**
+     * 解析第index个子查询的错误, 失败的子查询形如 {"error": {"type": ..., "reason": ...}, "status": 400}
+     * @return 以解析出的ElasticsearchException为cause的异常
+     */
+    private static IOException failure(byte[] body, int index) throws IOException {
+        ElasticsearchException error = null;
+        int status = -1;
+        try (XContentParser parser = responsesParser(body)) {
+            for (int i = 0; i < index; i++) {
+                parser.nextToken();
+                parser.skipChildren();
+            }
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("error".equals(field))
+                    error = parseError(parser);
+                else if ("status".equals(field))
+                    status = parser.intValue();
+                else
+                    parser.skipChildren();
+            }
+        }
+        String message = "第" + (index + 1) + "个子查询执行失败, status: " + status;
+        if (error != null)
+            message += ", " + error.getMessage();
+        return new IOException(message, error);
+    }
+
+    // error可以是对象, 也可以只是一个字符串
+    private static ElasticsearchException parseError(XContentParser parser) throws IOException {
+        if (parser.currentToken() == XContentParser.Token.START_OBJECT)
+            return ElasticsearchException.fromXContent(parser);
+        ElasticsearchException error = new ElasticsearchException(parser.text());
+        parser.skipChildren();
+        return error;
+    }
+}
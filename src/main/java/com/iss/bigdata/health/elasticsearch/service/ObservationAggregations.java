@@ -0,0 +1,125 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.joda.time.DateTime;
+
+import java.util.*;
+
+/**
+ * Observation体征统计的聚合查询构建与结果解析
+ * 查询不返回任何命中记录(size为0), 只返回每个时间区间内每种体征的统计值
+ */
+final class ObservationAggregations {
+    private static final String HISTOGRAM = "histogram";
+    private static final String STATS_SUFFIX = "_stats";
+    private static final String PERCENTILES_SUFFIX = "_percentiles";
+
+    private ObservationAggregations() {
+    }
+
+    /**
+     * 构建某个用户的Observation体征统计查询
+     * @param userId 用户的id
+     * @param startDate 开始时间
+     * @param endDate 结束时间
+     * @param interval 时间区间, 如DateHistogramInterval.MONTH
+     * @param percents 需要计算的百分位, 如50、95, 为空时不计算百分位数
+     * @param signNames 需要统计的体征名称
+     * @return 查询请求
+     */
+    static SearchRequest request(String userId, Date startDate, Date endDate,
+                                 DateHistogramInterval interval, double[] percents, String[] signNames) {
+        SearchRequest searchRequest = new SearchRequest("observation");
+        searchRequest.types("synthea");
+
+        DateHistogramAggregationBuilder histogram = AggregationBuilders
+                .dateHistogram(HISTOGRAM)
+                .field("date")
+                .dateHistogramInterval(interval)
+                .minDocCount(1);
+        for (String signName : signNames) {
+            histogram.subAggregation(AggregationBuilders.stats(signName + STATS_SUFFIX).field("signs." + signName));
+            if (percents != null && percents.length > 0)
+                histogram.subAggregation(AggregationBuilders
+                        .percentiles(signName + PERCENTILES_SUFFIX)
+                        .field("signs." + signName)
+                        .percentiles(percents));
+        }
+
+        searchRequest.source(new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.termQuery(EventSearches.USER_ID_KEY, userId))
+                        .must(QueryBuilders.rangeQuery("date").from(startDate).to(endDate)))
+                .size(0)
+                .aggregation(histogram));
+        return searchRequest;
+    }
+
+    /**
+     * 解析聚合结果
+     * @param response 查询结果
+     * @param interval 时间区间
+     * @param percents 请求的百分位
+     * @param signNames 请求的体征名称
+     * @return 按时间升序排列的统计结果
+     */
+    static ObservationStatistics parse(SearchResponse response, DateHistogramInterval interval,
+                                       double[] percents, String[] signNames) {
+        double[] requestedPercents = percents == null ? new double[0] : percents;
+        List<ObservationStatistics.Bucket> buckets = new ArrayList<>();
+        Aggregations aggregations = response.getAggregations();
+        Histogram histogram = aggregations == null ? null : aggregations.get(HISTOGRAM);
+        if (histogram != null)
+            for (Histogram.Bucket bucket : histogram.getBuckets()) {
+                Map<String, ObservationStatistics.SignStatistics> signs = new LinkedHashMap<>();
+                for (String signName : signNames)
+                    signs.put(signName, signStatistics(bucket.getAggregations(), signName, requestedPercents));
+                buckets.add(new ObservationStatistics.Bucket(timestamp(bucket.getKey()), bucket.getDocCount(), signs));
+            }
+        return new ObservationStatistics(interval.toString(), buckets);
+    }
+
+    /**
+     * @return 为空时返回全部体征名称
+     */
+    static String[] signNamesOrAll(String[] signNames) {
+        if (signNames == null || signNames.length == 0)
+            return ObservationSeries.SIGN_NAMES.toArray(new String[ObservationSeries.SIGN_NAMES.size()]);
+        return signNames;
+    }
+
+    private static ObservationStatistics.SignStatistics signStatistics(Aggregations aggregations, String signName, double[] percents) {
+        Stats stats = aggregations.get(signName + STATS_SUFFIX);
+        Percentiles percentiles = percents.length == 0 ? null : aggregations.get(signName + PERCENTILES_SUFFIX);
+        long count = stats == null ? 0 : stats.getCount();
+
+        double[] values = new double[percents.length];
+        for (int i = 0; i < percents.length; i++)
+            values[i] = count == 0 || percentiles == null ? Double.NaN : percentiles.percentile(percents[i]);
+
+        // 区间内没有该体征时, Elasticsearch返回的最值为正负无穷, 统一用NaN表示
+        if (count == 0)
+            return new ObservationStatistics.SignStatistics(0, Double.NaN, Double.NaN, Double.NaN, percents, values);
+        return new ObservationStatistics.SignStatistics(count, stats.getMin(), stats.getMax(), stats.getAvg(), percents, values);
+    }
+
+    private static long timestamp(Object key) {
+        if (key instanceof DateTime)
+            return ((DateTime) key).getMillis();
+        if (key instanceof Number)
+            return ((Number) key).longValue();
+        throw new RuntimeException("无法解析时间区间的key: " + key);
+    }
+}
@@ -0,0 +1,164 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.metrics.MetricsRegistry;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 使用search_after分页拉取完整结果集的查询
+ * 每页固定PAGE_SIZE条记录, 以上一页最后一条记录的排序值作为下一页的起点, 直到某一页不满为止,
+ * 这样既不会丢弃超过10000条之后的记录, 也不需要一次性接收一个巨大的响应
+ * 同步与异步的服务共用同一个分页查询, 只是发送请求的方式不同
+ */
+class PagedSearch {
+    /** 分页查询时每一页的大小 */
+    static final int PAGE_SIZE = 1000;
+    /** search_after分页时的唯一排序键, 保证排序值相同的记录之间顺序稳定 */
+    static final String TIE_BREAKER_KEY = "_uid";
+
+    private final SearchRequest request;
+    private final SearchSourceBuilder sourceBuilder;
+    private final Consumer<SearchHit> hitConsumer;
+    /** 查询涉及的用户, 按照user_id路由时只访问这些用户所在的分片 */
+    private final Set<String> userIds = new LinkedHashSet<>();
+
+    /**
+     * 注意：会在已有排序键之后追加TIE_BREAKER_KEY作为唯一排序键
+     * @param request 已设置索引与类型的查询请求
+     * @param sourceBuilder 已设置查询条件与排序键的查询语句
+     * @param hitConsumer 每条命中记录的处理方式
+     */
+    PagedSearch(SearchRequest request, SearchSourceBuilder sourceBuilder, Consumer<SearchHit> hitConsumer) {
+        this.request = request;
+        this.sourceBuilder = sourceBuilder;
+        this.hitConsumer = hitConsumer;
+
+        sourceBuilder.sort(TIE_BREAKER_KEY, SortOrder.ASC);
+        sourceBuilder.size(PAGE_SIZE);
+        request.source(sourceBuilder);
+    }
+
+    /**
+     * 记录查询涉及的用户, 在{@link #routeByUserId()}时使用
+     * @param userIds 用户id
+     * @return 当前分页查询
+     */
+    PagedSearch userIds(Collection<String> userIds) {
+        this.userIds.addAll(userIds);
+        return this;
+    }
+
+    /**
+     * 以查询涉及的用户id作为路由值, 查询只发送到这些用户所在的分片
+     * 注意：只有写入时同样以user_id作为路由值的索引才能使用, 否则会漏掉记录
+     * @see com.iss.bigdata.health.elasticsearch.help.UserRouting
+     */
+    void routeByUserId() {
+        if (!userIds.isEmpty() && !userIds.contains(null))
+            request.routing(userIds.toArray(new String[userIds.size()]));
+    }
+
+    /**
+     * @return 下一页的查询请求
+     */
+    SearchRequest request() {
+        return request;
+    }
+
+    /**
+     * 处理一页查询结果, 并将查询起点移动到这一页之后
+     * @param response 当前页的查询结果
+     * @return 是否还有下一页
+     */
+    boolean consume(SearchResponse response) {
+        return consume(response, MetricsRegistry.NOOP, null, 0);
+    }
+
+    /**
+     * 处理单独发送的一页查询结果, 并记录这一次请求与这一页的查询指标
+     * @param response 当前页的查询结果
+     * @param metrics 指标注册表
+     * @param operation 服务方法名
+     * @param latencyNanos 这一页的查询延迟
+     * @return 是否还有下一页
+     */
+    boolean consume(SearchResponse response, MetricsRegistry metrics, String operation, long latencyNanos) {
+        if (metrics != MetricsRegistry.NOOP)
+            metrics.recordRequest(operation, index(), latencyNanos);
+        return consumePage(response, metrics, operation);
+    }
+
+    // 处理一页查询结果并记录这一页的查询指标, 不记录请求
+    private boolean consumePage(SearchResponse response, MetricsRegistry metrics, String operation) {
+        SearchHit[] hits = response.getHits().getHits();
+        long sourceBytes = 0;
+        long decodeStart = System.nanoTime();
+        for (SearchHit hit : hits) {
+            hitConsumer.accept(hit);
+            if (hit.getSourceRef() != null)
+                sourceBytes += hit.getSourceRef().length();
+        }
+        if (metrics != MetricsRegistry.NOOP)
+            metrics.recordSearch(operation, index(), response.getTook().millis(), hits.length, sourceBytes,
+                    System.nanoTime() - decodeStart);
+
+        if (hits.length < PAGE_SIZE)
+            return false;
+        sourceBuilder.searchAfter(hits[hits.length - 1].getSortValues());
+        return true;
+    }
+
+    /**
+     * 处理一轮查询的结果
+     * @param pagedSearches 本轮发送的分页查询
+     * @param responses 与分页查询一一对应的查询结果
+     * @return 还有下一页的分页查询
+     */
+    static List<PagedSearch> consumeAll(List<PagedSearch> pagedSearches, List<SearchResponse> responses) {
+        return consumeAll(pagedSearches, responses, MetricsRegistry.NOOP, null, 0);
+    }
+
+    /**
+     * 处理一轮查询的结果, 记录这一轮请求的延迟以及每个查询的指标
+     * 多个查询通过_msearch一起发送时, 请求只记录一次, 记在{@link MetricsRegistry#MULTI_SEARCH_INDEX}下
+     * @param metrics 指标注册表
+     * @param operation 服务方法名
+     * @param latencyNanos 这一轮请求的延迟
+     * @see #consumeAll(List, List)
+     */
+    static List<PagedSearch> consumeAll(List<PagedSearch> pagedSearches, List<SearchResponse> responses,
+                                        MetricsRegistry metrics, String operation, long latencyNanos) {
+        if (metrics != MetricsRegistry.NOOP)
+            metrics.recordRequest(operation, pagedSearches.size() == 1 ? pagedSearches.get(0).index()
+                    : MetricsRegistry.MULTI_SEARCH_INDEX, latencyNanos);
+        List<PagedSearch> pending = new ArrayList<>();
+        for (int i = 0; i < pagedSearches.size(); i++)
+            if (pagedSearches.get(i).consumePage(responses.get(i), metrics, operation))
+                pending.add(pagedSearches.get(i));
+        return pending;
+    }
+
+    private String index() {
+        return String.join(",", request.indices());
+    }
+
+    /**
+     * @return 分页查询当前的查询请求
+     */
+    static List<SearchRequest> requests(List<PagedSearch> pagedSearches) {
+        List<SearchRequest> requests = new ArrayList<>(pagedSearches.size());
+        for (PagedSearch pagedSearch : pagedSearches)
+            requests.add(pagedSearch.request());
+        return requests;
+    }
+}
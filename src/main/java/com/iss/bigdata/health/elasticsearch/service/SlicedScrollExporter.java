@@ -0,0 +1,262 @@
+package com.iss.bigdata.health.elasticsearch.service;
+
+import com.iss.bigdata.health.elasticsearch.entity.EpochMillis;
+import com.iss.bigdata.health.elasticsearch.entity.Event;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.metrics.MetricsRegistry;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 通过sliced scroll并行导出整个索引的事件, 用于需要全部用户记录的人群分析
+ * 滚动查询被分为slices个切片, 每个切片由一个线程独立滚动到底, 切片数通常取CPU核数或索引的分片数
+ * 命中记录使用{@link EventTypeRegistry}中注册的实体类型解析, 事件日期取自排序键的docvalue
+ * 注意：sink会被多个线程同时调用, 必须是线程安全的
+ * 用法:
+ * <pre>
+ * SlicedScrollExporter exporter = new SlicedScrollExporter(client);
+ * exporter.setSlices(8);
+ * long exported = exporter.export("observation", Observation.class, queue::add);
+ * </pre>
+ */
+public class SlicedScrollExporter {
+    private static final String TYPE = "synthea";
+    /** 记录查询指标时使用的方法名 */
+    private static final String OPERATION = "export";
+
+    private final RestHighLevelClient client;
+    private MetricsRegistry metrics = MetricsRegistry.NOOP;
+    /** 切片数, 即并行滚动的线程数 */
+    private int slices = Runtime.getRuntime().availableProcessors();
+    /** 每次滚动返回的记录数 */
+    private int batchSize = 1000;
+    /** 两次滚动之间服务端保留滚动上下文的时间 */
+    private long keepAliveMillis = 60000;
+
+    /**
+     * @param client Elasticsearch客户端, 由调用者负责关闭
+     */
+    public SlicedScrollExporter(RestHighLevelClient client) {
+        this.client = client;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metrics;
+    }
+
+    /**
+     * 设置记录查询指标的注册表, 默认不记录
+     * @param metrics 如{@link com.iss.bigdata.health.elasticsearch.metrics.SnapshotMetricsRegistry}
+     */
+    public void setMetricsRegistry(MetricsRegistry metrics) {
+        this.metrics = metrics == null ? MetricsRegistry.NOOP : metrics;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public void setSlices(int slices) {
+        if (slices <= 0)
+            throw new RuntimeException("切片数必须大于0: " + slices);
+        this.slices = slices;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /**
+     * 导出整个索引的事件
+     * @see #export(String, Class, QueryBuilder, String[], String[], Consumer)
+     */
+    public <T> long export(String indexName, Class<T> classType, Consumer<? super Event<T>> sink) {
+        return export(indexName, classType, null, null, null, sink);
+    }
+
+    /**
+     * 并行导出索引中符合查询条件的事件, 所有切片完成后返回
+     * 任何一个切片失败或者调用线程被中断时, 其余切片立即停止, 等它们退出之后再抛出异常;
+     * 因此方法返回之后sink不会再被调用, sink已经收到的事件不会撤回
+     * @param indexName 索引名
+     * @param classType 需要获取事件实体的Class的类型
+     * @param query 查询条件, 为null时导出全部记录
+     * @param includes 需要返回的_source字段, 为null时返回全部字段
+     * @param excludes 不需要返回的_source字段, 可以为null
+     * @param sink 接收每个事件, 会被多个线程同时调用; 事件之间没有顺序
+     * @return 导出的事件数量
+     */
+    public <T> long export(String indexName, Class<T> classType, QueryBuilder query,
+                           String[] includes, String[] excludes, Consumer<? super Event<T>> sink) {
+        EventTypeRegistry.HitDecoder<T> decoder = EventTypeRegistry.decoderFor(indexName, classType);
+        String dateKey = EventTypeRegistry.getOrderKey(indexName);
+        LongAdder exported = new LongAdder();
+        Consumer<SearchHit> hitConsumer = hit -> {
+            sink.accept(new Event<>(hit.getId(), decoder.decode(hit), readMillis(hit, dateKey)));
+            exported.increment();
+        };
+
+        ExecutorService workers = Executors.newFixedThreadPool(slices, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sliced-scroll-export-" + indexName + "-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // 一个切片失败后其他切片不再继续滚动
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try {
+            List<Future<?>> futures = new ArrayList<>(slices);
+            for (int slice = 0; slice < slices; slice++) {
+                SearchRequest request = sliceRequest(indexName, slice, query, includes, excludes, dateKey);
+                futures.add(workers.submit(() -> scrollSlice(request, hitConsumer, cancelled)));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            cancelled.set(true);
+            stopWorkers(workers);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException("导出" + indexName + "失败", cause);
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            // 中断标记此时已被清除, 先等待工作线程退出再恢复
+            stopWorkers(workers);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("导出" + indexName + "时被中断", e);
+        } finally {
+            workers.shutdown();
+        }
+        return exported.sum();
+    }
+
+    // 中断仍在滚动的切片并等待它们退出, 最多等待一个keepAlive的时间
+    private void stopWorkers(ExecutorService workers) {
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(keepAliveMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SearchRequest sliceRequest(String indexName, int slice, QueryBuilder query,
+                                       String[] includes, String[] excludes, String dateKey) {
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(query == null ? QueryBuilders.matchAllQuery() : query)
+                .size(batchSize)
+                // 按照_doc排序, 滚动时不需要计算排序
+                .sort("_doc", SortOrder.ASC);
+        // Elasticsearch要求切片数大于1
+        if (slices > 1)
+            sourceBuilder.slice(new SliceBuilder(slice, slices));
+        if (includes != null || excludes != null)
+            sourceBuilder.fetchSource(includes, excludes);
+        if (dateKey != null)
+            sourceBuilder.docValueField(dateKey);
+
+        return new SearchRequest(indexName)
+                .types(TYPE)
+                .source(sourceBuilder)
+                .scroll(TimeValue.timeValueMillis(keepAliveMillis));
+    }
+
+    // 滚动一个切片直到取完或者其他切片失败, 结束时清除滚动上下文
+    private void scrollSlice(SearchRequest request, Consumer<SearchHit> hitConsumer, AtomicBoolean cancelled) {
+        String index = String.join(",", request.indices());
+        String scrollId = null;
+        try {
+            long startNanos = System.nanoTime();
+            SearchResponse response = client.search(request);
+            while (true) {
+                long latencyNanos = System.nanoTime() - startNanos;
+                scrollId = response.getScrollId();
+                SearchHit[] hits = response.getHits().getHits();
+                if (hits.length == 0 || cancelled.get())
+                    return;
+
+                long sourceBytes = 0;
+                long decodeStart = System.nanoTime();
+                for (SearchHit hit : hits) {
+                    // 其他切片失败后不再把这一批剩余的记录交给sink
+                    if (cancelled.get())
+                        return;
+                    hitConsumer.accept(hit);
+                    if (hit.getSourceRef() != null)
+                        sourceBytes += hit.getSourceRef().length();
+                }
+                metrics.recordRequest(OPERATION, index, latencyNanos);
+                metrics.recordSearch(OPERATION, index, response.getTook().millis(),
+                        hits.length, sourceBytes, System.nanoTime() - decodeStart);
+
+                startNanos = System.nanoTime();
+                response = client.searchScroll(new SearchScrollRequest(scrollId)
+                        .scroll(TimeValue.timeValueMillis(keepAliveMillis)));
+            }
+        } catch (IOException e) {
+            cancelled.set(true);
+            throw new RuntimeException("连接或查询有误, 请检查您的网络连接是否畅通，并检查查询项是否有误!", e);
+        } catch (RuntimeException e) {
+            cancelled.set(true);
+            throw e;
+        } finally {
+            clearScroll(scrollId);
+        }
+    }
+
+    // 尽早释放服务端的滚动上下文, 清除失败时上下文会在keepAlive之后自动过期
+    private void clearScroll(String scrollId) {
+        if (scrollId == null)
+            return;
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(scrollId);
+        try {
+            client.clearScroll(request);
+        } catch (IOException | RuntimeException e) {
+            // 忽略
+        }
+    }
+
+    private static long readMillis(SearchHit hit, String dateKey) {
+        DocumentField field = dateKey == null ? null : hit.field(dateKey);
+        if (field == null || !(field.getValue() instanceof Number))
+            return EpochMillis.NONE;
+        return ((Number) field.getValue()).longValue();
+    }
+}
@@ -2,15 +2,22 @@ package test.com.iss.bigdata.health.elasticsearch.service;
 
 import com.iss.bigdata.health.elasticsearch.entity.*;
 import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
 import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import com.iss.bigdata.health.elasticsearch.service.AsyncElasticSearchService;
+import com.iss.bigdata.health.elasticsearch.service.AsyncElasticSearchServiceImpl;
+import com.iss.bigdata.health.elasticsearch.service.CachingElasticSearchService;
 import com.iss.bigdata.health.elasticsearch.service.ElasticSearchService;
 import com.iss.bigdata.health.elasticsearch.service.ElasticSearchServiceImpl;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.sort.SortOrder;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Created by dujijun on 2018/1/3.
@@ -76,6 +83,33 @@ public class ServiceTest {
         System.out.println(map.getEventList(EventMap.getEventClassFromString("observations"), "observations"));
     }
 
+    @Test
+    public void projectionTest() {
+        HashMap<String, SortOrder> fieldOrder = new HashMap<>();
+        fieldOrder.put("date", SortOrder.DESC);
+        List<Event<Observation>> observations = service.getSpecificEventsByUserId("the-user-87", "observation", "synthea",
+                Observation.class, fieldOrder, "date", start, end,
+                new String[]{"date", "signs.glucose", "signs.body_weight"}, null);
+        observations.forEach(System.out::println);
+    }
+
+    @Test
+    public void observationSeriesTest() {
+        ObservationSeries series = service.getObservationSeriesByUserId("the-user-87", start, end, "glucose", "body_weight");
+        long[] timestamps = series.getTimestamps();
+        double[] glucose = series.getValues("glucose");
+        for (int i = 0; i < series.size(); i++)
+            System.out.println(new Date(timestamps[i]) + " " + (series.isMissing("glucose", i) ? "-" : glucose[i]));
+    }
+
+    @Test
+    public void observationStatisticsTest() {
+        ObservationStatistics statistics = service.getObservationStatisticsByUserId("the-user-87", start, end,
+                DateHistogramInterval.MONTH, new double[]{50, 95}, "glucose", "systolic_blood_pressure");
+        for (ObservationStatistics.Bucket bucket : statistics.getBuckets())
+            System.out.println(new Date(bucket.getTimestamp()) + " " + bucket.getSign("glucose"));
+    }
+
     @Test
     public void queryObjectTest(){
         List<QueryObject> list = new ArrayList<>();
@@ -102,6 +136,14 @@ public class ServiceTest {
         allEvent.forEach((k, v) -> System.out.printf("%s类型的事件中有%d条记录\n", k, v.size()));
     }
 
+    @Test
+    public void getAllEventsByUserIdsTest() {
+        Map<String, EventMap> allEvents = service.getAllTypeEventsByUserIds(
+                Arrays.asList("the-user-38", "the-user-87", "the-user-8510"), start, end);
+        allEvents.forEach((userId, eventMap) ->
+                eventMap.forEach((k, v) -> System.out.printf("%s的%s类型的事件中有%d条记录\n", userId, k, v.size())));
+    }
+
     @Test
     public void getEventDateTest() throws IOException {
         EventMap allEvent = service.getAllTypeEventByUserId("the-user-38", start, end);
@@ -120,4 +162,23 @@ public class ServiceTest {
         allEvent.forEach((k, v) -> System.out.printf("%s类型的事件中有%d条记录\n", k, v.size()));
     }
 
+    @Test
+    public void getAllEventsAsyncTest() throws ExecutionException, InterruptedException {
+        AsyncElasticSearchService asyncService = new AsyncElasticSearchServiceImpl();
+        EventMap allEvent = asyncService.getAllTypeEventByUserId("the-user-38", start, end).get();
+        allEvent.forEach((k, v) -> System.out.printf("%s类型的事件中有%d条记录\n", k, v.size()));
+    }
+
+    @Test
+    public void cachingServiceTest() {
+        ElasticSearchService cachingService = new CachingElasticSearchService(service, 1000, 60 * 1000);
+        List<Event<Encounter>> encounters = cachingService.getEncounterEventsByUserId("the-user-87", start, end);
+
+        // 时间范围在已缓存的范围之内, 直接从缓存中截取
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.YEAR, 2000);
+        List<Event<Encounter>> recentEncounters = cachingService.getEncounterEventsByUserId("the-user-87", calendar.getTime(), end);
+        System.out.println(encounters.size() + " " + recentEncounters.size());
+    }
+
 }
@@ -0,0 +1,827 @@
+package test.com.iss.bigdata.health.elasticsearch.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.util.TypeUtils;
+import com.iss.bigdata.health.elasticsearch.client.ElasticSearchClientFactory;
+import com.iss.bigdata.health.elasticsearch.entity.*;
+import com.iss.bigdata.health.elasticsearch.help.EventMap;
+import com.iss.bigdata.health.elasticsearch.help.EventTypeRegistry;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.ObservationStatistics;
+import com.iss.bigdata.health.elasticsearch.help.QueryObject;
+import com.iss.bigdata.health.elasticsearch.help.SourceDecoder;
+import com.iss.bigdata.health.elasticsearch.help.Timeline;
+import com.iss.bigdata.health.elasticsearch.metrics.MetricsRegistry;
+import com.iss.bigdata.health.elasticsearch.metrics.OperationMetrics;
+import com.iss.bigdata.health.elasticsearch.metrics.SnapshotMetricsRegistry;
+import com.iss.bigdata.health.elasticsearch.service.AsyncElasticSearchServiceImpl;
+import com.iss.bigdata.health.elasticsearch.service.BulkEventIngester;
+import com.iss.bigdata.health.elasticsearch.service.BulkIngestConfig;
+import com.iss.bigdata.health.elasticsearch.service.CachingElasticSearchService;
+import com.iss.bigdata.health.elasticsearch.service.CoalescingElasticSearchService;
+import com.iss.bigdata.health.elasticsearch.service.ElasticSearchService;
+import com.iss.bigdata.health.elasticsearch.service.ElasticSearchServiceImpl;
+import com.iss.bigdata.health.elasticsearch.service.SlicedScrollExporter;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import test.com.iss.bigdata.health.elasticsearch.standin.StandInElasticSearchServer;
+import test.com.iss.bigdata.health.elasticsearch.standin.SyntheaDocuments;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 使用替身服务器离线运行的服务测试, 不需要Elasticsearch集群
+ */
+public class StandInServiceTest {
+    private static final int USERS = 3;
+    /** 超过一页的大小, 覆盖search_after分页 */
+    private static final int EVENTS_PER_INDEX = 1100;
+
+    private static StandInElasticSearchServer server;
+    private static RestHighLevelClient client;
+    private static ElasticSearchService service;
+    private static Date start;
+    private static Date end;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new StandInElasticSearchServer();
+        SyntheaDocuments.generate(server, USERS, EVENTS_PER_INDEX, 87L);
+        server.start();
+        client = ElasticSearchClientFactory.create(server.clientConfig());
+        service = new ElasticSearchServiceImpl(client);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.YEAR, 100);
+        start = calendar.getTime();
+        calendar.set(Calendar.YEAR, 3000);
+        end = calendar.getTime();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void sharedClientCanOnlyBeInitializedOnce() {
+        ElasticSearchClientFactory.initSharedClient(server.clientConfig());
+        RestHighLevelClient shared = ElasticSearchClientFactory.getSharedClient();
+        try {
+            ElasticSearchClientFactory.initSharedClient(server.clientConfig());
+            fail("共享的客户端已经创建, 不能再次初始化");
+        } catch (RuntimeException e) {
+            // 原来的客户端没有被关闭或替换
+            assertSame(shared, ElasticSearchClientFactory.getSharedClient());
+        } finally {
+            ElasticSearchClientFactory.closeSharedClient();
+        }
+    }
+
+    @Test
+    public void specificEventsArePagedAndSorted() {
+        List<Event<Observation>> observations = service.getObservationEventsByUserId("the-user-0", start, end);
+        assertEquals(EVENTS_PER_INDEX, observations.size());
+        for (int i = 1; i < observations.size(); i++)
+            assertFalse(observations.get(i).getDate().after(observations.get(i - 1).getDate()));
+        assertEquals("the-user-0", observations.get(0).getDetail().getUser_id());
+    }
+
+    @Test
+    public void streamedEventsMatchList() {
+        List<Event<Observation>> observations = service.getObservationEventsByUserId("the-user-0", start, end);
+        List<String> streamed = new ArrayList<>();
+        long count = service.streamSpecificEventsByUserId("the-user-0", "observation", "synthea", Observation.class,
+                Collections.singletonMap("date", SortOrder.DESC), "date", start, end,
+                event -> streamed.add(event.getEventId()));
+        assertEquals(EVENTS_PER_INDEX, count);
+        for (int i = 0; i < observations.size(); i++)
+            assertEquals(observations.get(i).getEventId(), streamed.get(i));
+    }
+
+    @Test
+    public void publishedEventsFollowDemand() throws Exception {
+        SnapshotMetricsRegistry metrics = new SnapshotMetricsRegistry();
+        AsyncElasticSearchServiceImpl asyncService = new AsyncElasticSearchServiceImpl(client, ForkJoinPool.commonPool());
+        asyncService.setMetricsRegistry(metrics);
+        Publisher<Event<Observation>> publisher = asyncService.publishSpecificEventsByUserId("the-user-0", "observation", "synthea",
+                Observation.class, Collections.singletonMap("date", SortOrder.DESC), "date", start, end);
+
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstTen = new CountDownLatch(10);
+        CountDownLatch completed = new CountDownLatch(1);
+        Subscription[] subscription = new Subscription[1];
+        publisher.subscribe(new Subscriber<Event<Observation>>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+                s.request(10);
+            }
+
+            @Override
+            public void onNext(Event<Observation> event) {
+                received.add(event.getEventId());
+                firstTen.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                t.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        assertTrue(firstTen.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // 第一页还没有取完, 不会拉取下一页
+        assertEquals(10, received.size());
+        assertEquals(1, metrics.get("publishSpecificEventsByUserId", "observation").getRequests());
+
+        subscription[0].request(Long.MAX_VALUE);
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, metrics.get("publishSpecificEventsByUserId", "observation").getRequests());
+        List<Event<Observation>> observations = service.getObservationEventsByUserId("the-user-0", start, end);
+        assertEquals(observations.size(), received.size());
+        for (int i = 0; i < observations.size(); i++)
+            assertEquals(observations.get(i).getEventId(), received.get(i));
+    }
+
+    @Test
+    public void publisherReportsSearchErrorsAfterSubscribe() throws Exception {
+        AsyncElasticSearchServiceImpl asyncService = new AsyncElasticSearchServiceImpl(client, ForkJoinPool.commonPool());
+        // userId为null时无法构建查询
+        Publisher<Event<Observation>> publisher = asyncService.publishSpecificEventsByUserId(null, "observation", "synthea",
+                Observation.class, Collections.singletonMap("date", SortOrder.DESC), "date", start, end);
+
+        List<String> signals = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch failed = new CountDownLatch(1);
+        publisher.subscribe(new Subscriber<Event<Observation>>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                signals.add("onSubscribe");
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(Event<Observation> event) {
+                signals.add("onNext");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                signals.add("onError");
+                failed.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                signals.add("onComplete");
+            }
+        });
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("onSubscribe", "onError"), signals);
+    }
+
+    @Test
+    public void allTypeEvents() {
+        EventMap eventMap = service.getAllTypeEventByUserId("the-user-1", start, end);
+        assertEquals(7, eventMap.size());
+        for (String indexName : eventMap.keySet())
+            assertEquals(indexName, EVENTS_PER_INDEX, eventMap.getEventList(Object.class, indexName).size());
+    }
+
+    @Test
+    public void timelineMergesAllTypes() {
+        EventMap eventMap = service.getAllTypeEventByUserId("the-user-1", start, end);
+        Timeline timeline = new Timeline(eventMap);
+        assertEquals(7 * EVENTS_PER_INDEX, timeline.size());
+
+        Timeline.Cursor cursor = timeline.cursor();
+        List<Timeline.Entry> firstPage = cursor.nextPage(100);
+        // 从记录的位置继续读取, 与一次读完的顺序相同
+        Timeline.Cursor resumed = timeline.cursor(cursor.getPositions());
+        Date previous = firstPage.get(firstPage.size() - 1).getDate();
+        int count = firstPage.size();
+        while (resumed.hasNext()) {
+            Timeline.Entry entry = resumed.next();
+            assertFalse(entry.getDate().after(previous));
+            previous = entry.getDate();
+            count++;
+        }
+        assertEquals(timeline.size(), count);
+    }
+
+    @Test
+    public void failedSubSearchCarriesError() {
+        server.setFailingIndex("observation");
+        try {
+            service.getAllTypeEventByUserId("the-user-0", start, end);
+            fail("observation的子查询失败, 查询应当失败");
+        } catch (RuntimeException e) {
+            Throwable failure = e.getCause();
+            assertTrue(failure.getMessage(), failure.getMessage().contains("status: 400"));
+            assertTrue(failure.getCause() instanceof org.elasticsearch.ElasticsearchException);
+            assertTrue(failure.getCause().getMessage().contains("search_phase_execution_exception"));
+        } finally {
+            server.setFailingIndex(null);
+        }
+    }
+
+    @Test
+    public void allTypeEventsByUserIds() {
+        Map<String, EventMap> eventMaps = service.getAllTypeEventsByUserIds(
+                Arrays.asList("the-user-0", "the-user-2", "the-user-missing"), start, end);
+        assertEquals(3, eventMaps.size());
+        assertEquals(EVENTS_PER_INDEX, eventMaps.get("the-user-2").getEventList(Allergy.class, "allergies").size());
+        assertTrue(eventMaps.get("the-user-missing").getEventList(Allergy.class, "allergies").isEmpty());
+    }
+
+    @Test
+    public void asyncMatchesSync() throws Exception {
+        AsyncElasticSearchServiceImpl asyncService = new AsyncElasticSearchServiceImpl(client, ForkJoinPool.commonPool());
+        EventMap async = asyncService.getAllTypeEventByUserId("the-user-0", start, end).get();
+        EventMap sync = service.getAllTypeEventByUserId("the-user-0", start, end);
+        for (String indexName : sync.keySet())
+            assertEquals(sync.getEventList(Object.class, indexName).size(), async.getEventList(Object.class, indexName).size());
+    }
+
+    @Test
+    public void asyncReturnsFailedFuturesInsteadOfThrowing() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncElasticSearchServiceImpl asyncService = new AsyncElasticSearchServiceImpl(client, executor);
+            // 无法构建查询时返回失败的future, 而不是在调用线程中抛出异常
+            CompletableFuture<List<Event<Observation>>> invalid = asyncService.getSpecificEventsByUserId("the-user-0",
+                    "observation", "synthea", Observation.class, null, "date", start, end);
+            assertTrue(invalid.isCompletedExceptionally());
+
+            // 解析时抛出的Error同样结束future
+            CompletableFuture<Long> streamed = asyncService.streamSpecificEventsByUserId("the-user-0", "observation",
+                    "synthea", Observation.class, Collections.singletonMap("date", SortOrder.DESC), "date", start, end,
+                    event -> {
+                        throw new StackOverflowError();
+                    });
+            try {
+                streamed.get(10, TimeUnit.SECONDS);
+                fail("解析时抛出Error, 查询应当失败");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncFailsWhenDecodeExecutorRejects() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        AsyncElasticSearchServiceImpl asyncService = new AsyncElasticSearchServiceImpl(client, executor);
+        // 单个查询和_msearch两条路径都要以异常结束, 不能一直等待
+        List<CompletableFuture<?>> futures = Arrays.asList(
+                asyncService.getAllergyEventsByUserId("the-user-0", start, end),
+                asyncService.getAllTypeEventByUserId("the-user-0", start, end));
+        for (CompletableFuture<?> future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("线程池已经关闭, 查询应当失败");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    @Test
+    public void slicedScrollExportsWholeIndex() {
+        SlicedScrollExporter exporter = new SlicedScrollExporter(client);
+        exporter.setSlices(4);
+        exporter.setBatchSize(300);
+        Queue<Event<Observation>> exported = new ConcurrentLinkedQueue<>();
+        assertEquals(USERS * EVENTS_PER_INDEX, exporter.export("observation", Observation.class, exported::add));
+
+        Set<String> ids = new HashSet<>();
+        Set<String> userIds = new HashSet<>();
+        for (Event<Observation> event : exported) {
+            ids.add(event.getEventId());
+            userIds.add(event.getDetail().getUser_id());
+            assertTrue(event.hasDate());
+        }
+        assertEquals(USERS * EVENTS_PER_INDEX, ids.size());
+        assertEquals(USERS, userIds.size());
+    }
+
+    @Test
+    public void slicedScrollStopsCallingSinkAfterFailure() throws InterruptedException {
+        SlicedScrollExporter exporter = new SlicedScrollExporter(client);
+        exporter.setSlices(4);
+        exporter.setBatchSize(300);
+        AtomicInteger received = new AtomicInteger();
+        try {
+            exporter.export("observation", Observation.class, event -> {
+                if (received.incrementAndGet() == 10)
+                    throw new IllegalStateException("sink failed");
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            });
+            fail("export should fail");
+        } catch (IllegalStateException e) {
+            assertEquals("sink failed", e.getMessage());
+        }
+        // export返回之后其余切片不再调用sink
+        int afterFailure = received.get();
+        Thread.sleep(200);
+        assertEquals(afterFailure, received.get());
+    }
+
+    @Test
+    public void userBasic() {
+        Event<UserBasic> userBasic = service.getUserBasicByUserId("the-user-2");
+        assertNotNull(userBasic);
+        assertEquals("the-user-2", userBasic.getDetail().getUser_id());
+    }
+
+    @Test
+    public void observationSeriesAndStatistics() {
+        ObservationSeries series = service.getObservationSeriesByUserId("the-user-0", start, end, "glucose");
+        assertEquals(EVENTS_PER_INDEX, series.size());
+        // 修改返回的数组不影响序列本身
+        double first = series.getValue("glucose", 0);
+        series.getValues("glucose")[0] = first + 1;
+        series.getTimestamps()[0] = -1;
+        assertEquals(first, series.getValue("glucose", 0), 0);
+        assertNotEquals(-1, series.getTimestamp(0));
+
+        ObservationStatistics statistics = service.getObservationStatisticsByUserId("the-user-0", start, end,
+                DateHistogramInterval.YEAR, new double[]{50}, "glucose");
+        long observations = 0;
+        for (ObservationStatistics.Bucket bucket : statistics.getBuckets()) {
+            observations += bucket.getDocCount();
+            ObservationStatistics.SignStatistics glucose = bucket.getSign("glucose");
+            if (glucose.getCount() > 0)
+                assertTrue(glucose.getMin() <= glucose.getPercentile(50) && glucose.getPercentile(50) <= glucose.getMax());
+        }
+        assertEquals(EVENTS_PER_INDEX, observations);
+    }
+
+    @Test
+    public void coalescedCallersCanModifyTheirResults() throws Exception {
+        CoalescingElasticSearchService coalescing = new CoalescingElasticSearchService(service);
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        server.setLatency(100, 0);
+        try {
+            CountDownLatch ready = new CountDownLatch(callers);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++)
+                futures.add(executor.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    EventMap eventMap = coalescing.getAllTypeEventByUserId("the-user-1", start, end);
+                    int size = eventMap.getEventList(Allergy.class, "allergies").size();
+                    // 拿到结果后立刻修改, 不能影响仍在复制结果的其他调用方
+                    for (int round = 0; round < 100; round++)
+                        for (String indexName : eventMap.keySet()) {
+                            List<Event<Object>> events = eventMap.getEventList(Object.class, indexName);
+                            List<Event<Object>> copy = new ArrayList<>(events);
+                            events.clear();
+                            events.addAll(copy);
+                        }
+                    return size;
+                }));
+            for (Future<Integer> future : futures)
+                assertEquals(EVENTS_PER_INDEX, (int) future.get());
+            assertTrue(coalescing.getCoalescedCount() > 0);
+        } finally {
+            server.setLatency(0, 0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsAreRecorded() {
+        SnapshotMetricsRegistry metrics = new SnapshotMetricsRegistry();
+        ElasticSearchServiceImpl measured = new ElasticSearchServiceImpl(client);
+        measured.setMetricsRegistry(metrics);
+        measured.getObservationEventsByUserId("the-user-0", start, end);
+
+        OperationMetrics observation = metrics.get("getSpecificEventsByUserId", "observation");
+        assertEquals(2, observation.getRequests());
+        assertEquals(EVENTS_PER_INDEX, observation.getHits());
+        assertEquals(2, observation.getSearches());
+        assertTrue(observation.getSourceBytes() > 0);
+        assertTrue(observation.getLatencyMillis99() >= observation.getLatencyMillis50());
+
+        // _msearch的每一轮只记录一次请求, 子查询只记录各自的took、命中数与解码时间
+        metrics.reset();
+        long before = server.getRequestCount();
+        measured.getAllTypeEventByUserId("the-user-0", start, end);
+        OperationMetrics rounds = metrics.get("getAllTypeEventByUserId", MetricsRegistry.MULTI_SEARCH_INDEX);
+        assertTrue(rounds.getRequests() > 0);
+        assertEquals(0, rounds.getSearches());
+        long requests = 0;
+        long searches = 0;
+        for (OperationMetrics operationMetrics : metrics.snapshot()) {
+            requests += operationMetrics.getRequests();
+            searches += operationMetrics.getSearches();
+        }
+        assertEquals(server.getRequestCount() - before, requests);
+        assertTrue(searches > requests);
+    }
+
+    @Test
+    public void concurrentIdenticalQueriesAreCoalesced() throws Exception {
+        CoalescingElasticSearchService coalescing = new CoalescingElasticSearchService(service);
+        long before = server.getRequestCount();
+        coalescing.getAllTypeEventByUserId("the-user-2", start, end);
+        long single = server.getRequestCount() - before;
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        // 延迟使查询执行期间其余调用都已经到达
+        server.setLatency(100, 0);
+        try {
+            CountDownLatch ready = new CountDownLatch(callers);
+            List<Future<EventMap>> futures = new ArrayList<>();
+            before = server.getRequestCount();
+            for (int i = 0; i < callers; i++)
+                futures.add(executor.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    return coalescing.getAllTypeEventByUserId("the-user-2", start, end);
+                }));
+            Set<List<?>> allergyLists = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Future<EventMap> future : futures) {
+                List<Event<Allergy>> allergies = future.get().getEventList(Allergy.class, "allergies");
+                assertEquals(EVENTS_PER_INDEX, allergies.size());
+                allergyLists.add(allergies);
+            }
+            // 每个调用方得到各自的列表, 修改其中一个不影响其他调用方
+            assertEquals(callers, allergyLists.size());
+            assertTrue(server.getRequestCount() - before < callers * single);
+            assertTrue(coalescing.getCoalescedCount() > 0);
+        } finally {
+            server.setLatency(0, 0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void routingByUserIdTouchesOneShard() {
+        ElasticSearchServiceImpl routed = new ElasticSearchServiceImpl(client);
+        routed.setRoutingByUserId(true);
+        server.setShards(5);
+        try {
+            long before = server.getShardSearchCount();
+            EventMap broadcast = service.getAllTypeEventByUserId("the-user-1", start, end);
+            long broadcastShards = server.getShardSearchCount() - before;
+
+            before = server.getShardSearchCount();
+            EventMap eventMap = routed.getAllTypeEventByUserId("the-user-1", start, end);
+            long routedShards = server.getShardSearchCount() - before;
+
+            for (String indexName : broadcast.keySet())
+                assertEquals(indexName, broadcast.getEventList(Object.class, indexName).size(),
+                             eventMap.getEventList(Object.class, indexName).size());
+            assertEquals(broadcastShards, routedShards * 5);
+            assertEquals(EVENTS_PER_INDEX, routed.getObservationSeriesByUserId("the-user-1", start, end, "glucose").size());
+        } finally {
+            server.setShards(1);
+        }
+    }
+
+    @Test
+    public void bulkIngestionRetriesRejectedItems() throws Exception {
+        int conditions = 2500;
+        try (StandInElasticSearchServer ingestServer = new StandInElasticSearchServer().start();
+             RestHighLevelClient ingestClient = ElasticSearchClientFactory.create(ingestServer.clientConfig())) {
+            ingestServer.rejectBulkItems(30);
+            BulkIngestConfig config = new BulkIngestConfig();
+            config.setBulkActions(100);
+            config.setQueueCapacity(50);
+            config.setInitialBackoffMillis(10);
+            config.setRoutingByUserId(true);
+
+            BulkEventIngester ingester = new BulkEventIngester(ingestClient, config);
+            Calendar calendar = Calendar.getInstance();
+            for (int i = 0; i < conditions; i++) {
+                Condition condition = new Condition();
+                condition.setUser_id("the-ingested-user");
+                calendar.set(2000 + i % 18, i % 12, 1 + i % 28, 0, 0, 0);
+                condition.setStart(calendar.getTime());
+                condition.setDescription("Condition " + i);
+                ingester.index(condition);
+            }
+            ingester.close();
+
+            assertEquals(conditions, ingester.getIndexedCount());
+            assertEquals(0, ingester.getFailedCount());
+            assertTrue(ingester.getRetriedCount() >= 30);
+            assertEquals(conditions, ingestServer.count("conditions"));
+
+            ElasticSearchServiceImpl routed = new ElasticSearchServiceImpl(ingestClient);
+            routed.setRoutingByUserId(true);
+            ingestServer.setShards(5);
+            assertEquals(conditions, routed.getConditionEventsByUserId("the-ingested-user", start, end).size());
+        }
+    }
+
+    @Test
+    public void bulkIngestionCloseDoesNotWaitForRacingProducers() throws Exception {
+        try (StandInElasticSearchServer ingestServer = new StandInElasticSearchServer().start();
+             RestHighLevelClient ingestClient = ElasticSearchClientFactory.create(ingestServer.clientConfig())) {
+            BulkIngestConfig config = new BulkIngestConfig();
+            config.setBulkActions(10);
+            config.setQueueCapacity(1);
+            ExecutorService producers = Executors.newFixedThreadPool(8);
+            try {
+                // 生产者在close的同时写入, 可能在END之后才放入队列
+                for (int round = 0; round < 20; round++) {
+                    BulkEventIngester ingester = new BulkEventIngester(ingestClient, config);
+                    List<Future<?>> running = new ArrayList<>();
+                    for (int i = 0; i < 8; i++)
+                        running.add(producers.submit(() -> {
+                            try {
+                                while (true) {
+                                    Condition condition = new Condition();
+                                    condition.setUser_id("the-racing-user");
+                                    condition.setDescription("Condition");
+                                    ingester.index(condition);
+                                }
+                            } catch (RuntimeException e) {
+                                // close之后index抛出异常
+                            }
+                        }));
+                    Thread.sleep(10);
+                    CompletableFuture.runAsync(ingester::close).get(10, TimeUnit.SECONDS);
+                    for (Future<?> producer : running)
+                        producer.get(10, TimeUnit.SECONDS);
+                    assertEquals(0, ingester.getQueueSize());
+                    assertEquals(ingester.getSubmittedCount(), ingester.getIndexedCount() + ingester.getFailedCount());
+                }
+            } finally {
+                producers.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void equivalentProjectionsShareOneSearch() {
+        QueryObject<Condition> conditions = new QueryObject<>("the-user-0", "conditions", "synthea", Condition.class, start, end);
+        QueryObject<Allergy> allergies = new QueryObject<>("the-user-0", "allergies", "synthea", Allergy.class, start, end);
+        long before = server.getShardSearchCount();
+        EventMap plain = service.getSeveralTypeEventsByUserId(Arrays.asList(conditions, allergies));
+        long plainSearches = server.getShardSearchCount() - before;
+
+        // null与空数组都表示不过滤
+        allergies.setIncludes(new String[0]);
+        allergies.setExcludes(new String[0]);
+        before = server.getShardSearchCount();
+        EventMap empty = service.getSeveralTypeEventsByUserId(Arrays.asList(conditions, allergies));
+        assertEquals(plainSearches, server.getShardSearchCount() - before);
+        assertEquals(ids(plain.getEventList(Allergy.class, "allergies")), ids(empty.getEventList(Allergy.class, "allergies")));
+
+        // 字段的先后顺序不影响过滤结果
+        conditions.setIncludes(new String[]{"user_id", "start"});
+        allergies.setIncludes(new String[]{"start", "user_id"});
+        before = server.getShardSearchCount();
+        service.getSeveralTypeEventsByUserId(Arrays.asList(conditions, allergies));
+        assertEquals(plainSearches, server.getShardSearchCount() - before);
+    }
+
+    @Test
+    public void cacheHitsAndSlicesCoveredRanges() {
+        CachingElasticSearchService caching = new CachingElasticSearchService(service, 10, 60000);
+        long before = server.getRequestCount();
+        List<Event<Condition>> all = caching.getConditionEventsByUserId("the-user-0", start, end);
+        long loaded = server.getRequestCount();
+        assertTrue(loaded > before);
+        assertEquals(ids(all), ids(caching.getConditionEventsByUserId("the-user-0", start, end)));
+        assertEquals(loaded, server.getRequestCount());
+
+        // 落在已缓存时间范围内的查询直接从缓存中截取
+        Date from = all.get(all.size() * 3 / 4).getDate();
+        Date to = all.get(all.size() / 4).getDate();
+        List<Event<Condition>> sliced = caching.getConditionEventsByUserId("the-user-0", from, to);
+        assertEquals(loaded, server.getRequestCount());
+        assertEquals(ids(service.getConditionEventsByUserId("the-user-0", from, to)), ids(sliced));
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsed() {
+        CachingElasticSearchService caching = new CachingElasticSearchService(service, 2, 60000);
+        caching.getAllergyEventsByUserId("the-user-0", start, end);
+        caching.getAllergyEventsByUserId("the-user-1", start, end);
+        caching.getAllergyEventsByUserId("the-user-0", start, end);
+        // the-user-1最久未使用, 被淘汰
+        caching.getAllergyEventsByUserId("the-user-2", start, end);
+
+        long before = server.getRequestCount();
+        caching.getAllergyEventsByUserId("the-user-0", start, end);
+        assertEquals(before, server.getRequestCount());
+        caching.getAllergyEventsByUserId("the-user-1", start, end);
+        assertTrue(server.getRequestCount() > before);
+    }
+
+    @Test
+    public void cacheEntriesExpire() throws Exception {
+        CachingElasticSearchService caching = new CachingElasticSearchService(service, 10, 50);
+        caching.getCarePlanEventsByUserId("the-user-1", start, end);
+        long before = server.getRequestCount();
+        Thread.sleep(100);
+        caching.getCarePlanEventsByUserId("the-user-1", start, end);
+        assertTrue(server.getRequestCount() > before);
+    }
+
+    @Test
+    public void cacheSeparatesOrderKeys() {
+        // date与start的先后顺序相反
+        String userId = "the-cached-user";
+        for (int i = 0; i < 5; i++) {
+            JSONObject source = condition(userId, (2000 + i) + "-01-01", i);
+            source.put("date", (2020 - i) + "-01-01");
+            server.index("conditions", "cached-" + i, source);
+        }
+
+        CachingElasticSearchService caching = new CachingElasticSearchService(service, 10, 60000);
+        QueryObject<Condition> byDate = new QueryObject<>(userId, "conditions", "synthea", Condition.class, start, end);
+        byDate.setFilterNameAndOrderKey("date");
+        EventMap orderedByDate = caching.getMutiTypeEventsByUserIdOrderByDate(Collections.singletonList(byDate));
+        assertEquals(Arrays.asList("cached-0", "cached-1", "cached-2", "cached-3", "cached-4"),
+                ids(orderedByDate.getEventList(Condition.class, "conditions")));
+
+        // 按照start排序的查询不能拿到按照date排序的缓存
+        List<String> orderedByStart = Arrays.asList("cached-4", "cached-3", "cached-2", "cached-1", "cached-0");
+        assertEquals(orderedByStart, ids(caching.getConditionEventsByUserId(userId, start, end)));
+        QueryObject<Condition> byStart = new QueryObject<>(userId, "conditions", "synthea", Condition.class, start, end);
+        assertEquals(orderedByStart,
+                ids(caching.getSeveralTypeEventsByUserId(Collections.singletonList(byStart)).getEventList(Condition.class, "conditions")));
+    }
+
+    private static List<String> ids(List<? extends Event<?>> events) {
+        List<String> ids = new ArrayList<>();
+        for (Event<?> event : events)
+            ids.add(event.getEventId());
+        return ids;
+    }
+
+    @Test
+    public void deltaRefreshMergesNewerDocuments() {
+        String userId = "the-refreshed-user";
+        server.index("conditions", "refresh-1", condition(userId, "2001-01-01", 100));
+        server.index("conditions", "refresh-2", condition(userId, "2003-01-01", 200));
+        server.index("conditions", "refresh-3", condition(userId, "2005-01-01", 300));
+
+        EventMap eventMap = new EventMap();
+        long mark = service.refreshAllTypeEventByUserId(eventMap, userId, start, end, Long.MIN_VALUE);
+        assertEquals(300, mark);
+        List<Event<Condition>> conditions = eventMap.getEventList(Condition.class, "conditions");
+        assertEquals(3, conditions.size());
+
+        // 一条新记录, 以及一条改变了日期的已有记录
+        server.index("conditions", "refresh-4", condition(userId, "2004-01-01", 400));
+        server.index("conditions", "refresh-1", condition(userId, "2006-01-01", 500));
+        mark = service.refreshAllTypeEventByUserId(eventMap, userId, start, end, mark);
+        assertEquals(500, mark);
+        assertSame(conditions, eventMap.getEventList(Condition.class, "conditions"));
+        List<String> ids = new ArrayList<>();
+        for (Event<Condition> condition : conditions)
+            ids.add(condition.getEventId());
+        assertEquals(Arrays.asList("refresh-1", "refresh-3", "refresh-4", "refresh-2"), ids);
+
+        assertEquals(500, service.refreshAllTypeEventByUserId(eventMap, userId, start, end, mark));
+        assertEquals(4, conditions.size());
+    }
+
+    @Test
+    public void deltaRefreshIncludesDocumentsAtHighWaterMark() {
+        String userId = "the-late-user";
+        server.index("conditions", "late-1", condition(userId, "2001-01-01", 100));
+        EventMap eventMap = new EventMap();
+        long mark = service.refreshAllTypeEventByUserId(eventMap, userId, start, end, Long.MIN_VALUE);
+        assertEquals(100, mark);
+
+        // 与高水位同一时刻写入, 但上一次刷新时还不可见
+        server.index("conditions", "late-2", condition(userId, "2002-01-01", 100));
+        mark = service.refreshAllTypeEventByUserId(eventMap, userId, start, end, mark);
+        assertEquals(100, mark);
+        List<Event<Condition>> conditions = eventMap.getEventList(Condition.class, "conditions");
+        // 重叠部分再次查询到的late-1不会重复
+        assertEquals(Arrays.asList("late-2", "late-1"), ids(conditions));
+    }
+
+    @Test
+    public void epochMillisMatchesFastjson() {
+        TimeZone original = JSON.defaultTimeZone;
+        // 普通日期、闰日、1970年之前的日期、零点落在夏令时切换中的日期, 以及毫秒时间戳和带时间的字符串
+        List<String> texts = Arrays.asList("2010-01-01", "2017-12-31", "2000-02-29", "2016-02-29", "1969-12-31",
+                "1950-06-15", "1900-03-01", "1986-05-04", "1991-09-15", "2016-10-16", "2018-11-04", "2018-02-18",
+                "1262275200000", "2010-01-01T08:30:00", "2010-01-01 08:30:00", "2010-01-01T08:30:00.123");
+        try {
+            for (String zone : Arrays.asList("UTC", "Asia/Shanghai", "America/Sao_Paulo", "America/New_York", original.getID())) {
+                JSON.defaultTimeZone = TimeZone.getTimeZone(zone);
+                for (String text : texts)
+                    assertEquals(zone + " " + text, TypeUtils.castToDate(text).getTime(), EpochMillis.parse(text));
+            }
+        } finally {
+            JSON.defaultTimeZone = original;
+        }
+        assertEquals(EpochMillis.NONE, EpochMillis.parse(""));
+        assertEquals(EpochMillis.NONE, EpochMillis.parse(null));
+    }
+
+    @Test
+    public void epochMillisCodecReadsNullNumberAndString() {
+        Condition condition = JSON.parseObject(
+                "{\"date\": null, \"start\": 1262275200000, \"stop\": \"2010-01-01\"}", Condition.class);
+        assertEquals(EpochMillis.NONE, condition.getDateMillis());
+        assertNull(condition.getDate());
+        assertEquals(1262275200000L, condition.getStartMillis());
+        assertEquals(TypeUtils.castToDate("2010-01-01").getTime(), condition.getStopMillis());
+    }
+
+    @Test
+    public void reregisteringAnIndexDropsItsOldAliases() {
+        EventTypeRegistry.register("test-reregistered", Condition.class, "start", false, "test-old-alias", "test-kept-alias");
+        EventTypeRegistry.register("test-reregistered", Allergy.class, "start", false, "test-kept-alias");
+        assertNull(EventTypeRegistry.get("test-old-alias"));
+        assertEquals(Allergy.class, EventTypeRegistry.getEventClass("test-kept-alias"));
+        assertEquals(Allergy.class, EventTypeRegistry.getEventClass("test-reregistered"));
+        assertEquals("conditions", EventTypeRegistry.forClass(Condition.class).getIndexName());
+    }
+
+    @Test
+    public void eventSerializesDateOnly() {
+        JSONObject json = JSON.parseObject(JSON.toJSONString(new Event<>("event-1", "detail", 1262275200000L)));
+        assertEquals(1262275200000L, json.getLongValue("date"));
+        assertFalse(json.containsKey("dateMillis"));
+    }
+
+    @Test
+    public void decodedCodesShareDictionaryInstances() {
+        String source = "{\"code\": \"44054006\", \"description\": \"Diabetes\", \"start\": \"2010-01-01\"}";
+        EventTypeRegistry.HitDecoder<Condition> decoder = EventTypeRegistry.decoderFor("conditions", Condition.class);
+        Condition first = decoder.decode(hit("dictionary-1", source));
+        Condition second = decoder.decode(hit("dictionary-2", source));
+        assertSame(first.getCode(), second.getCode());
+        assertSame(first.getDescription(), second.getDescription());
+        // 字典属于解码器, 直接用fastjson解析时setter不经过字典
+        Condition plain = JSON.parseObject(source, Condition.class);
+        assertNotSame(first.getCode(), plain.getCode());
+        StringDictionary dictionary = new StringDictionary(4);
+        SourceDecoder.decode(hit("dictionary-3", source), Condition.class, dictionary);
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void dictionaryStopsGrowingAtCapacity() {
+        StringDictionary dictionary = new StringDictionary(2);
+        String a = dictionary.intern(new String("a"));
+        dictionary.intern(new String("b"));
+        String c = new String("c");
+        assertSame(c, dictionary.intern(c));
+        assertEquals(2, dictionary.size());
+        // 写满之后新的字符串不再共享, 已有的字符串仍然共享
+        assertNotSame(c, dictionary.intern(new String("c")));
+        assertSame(a, dictionary.intern(new String("a")));
+        assertEquals(2, dictionary.size());
+    }
+
+    private static SearchHit hit(String id, String source) {
+        SearchHit hit = new SearchHit(0, id, new Text("synthea"), Collections.emptyMap());
+        hit.sourceRef(new BytesArray(source));
+        return hit;
+    }
+
+    private static JSONObject condition(String userId, String date, long timestamp) {
+        JSONObject source = new JSONObject(true);
+        source.put("timestamp", timestamp);
+        source.put("user_id", userId);
+        source.put("start", date);
+        source.put("description", "Condition");
+        return source;
+    }
+}
@@ -0,0 +1,98 @@
+package test.com.iss.bigdata.health.elasticsearch.standin;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * 替身服务器中存放的一条记录
+ */
+public class StandInDocument {
+    private final String index;
+    private final String type;
+    private final String id;
+    private final JSONObject source;
+    /** 写入时的路由值, 为null时按照_id分配分片 */
+    private final String routing;
+
+    public StandInDocument(String index, String type, String id, JSONObject source) {
+        this(index, type, id, source, null);
+    }
+
+    public StandInDocument(String index, String type, String id, JSONObject source, String routing) {
+        this.index = index;
+        this.type = type;
+        this.id = id;
+        this.source = source;
+        this.routing = routing;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public JSONObject getSource() {
+        return source;
+    }
+
+    public String getRouting() {
+        return routing;
+    }
+
+    /**
+     * 与Elasticsearch相同, 以路由值(默认为_id)的哈希决定所在的分片
+     * @param shards 分片数
+     * @return 分片编号
+     */
+    public int shard(int shards) {
+        return StandInDocument.shard(routing == null ? id : routing, shards);
+    }
+
+    static int shard(String routing, int shards) {
+        return Math.floorMod(routing.hashCode(), shards);
+    }
+
+    /**
+     * 读取字段的值, 支持signs.glucose这样的路径, 以及_index、_type、_id、_uid这些元数据字段
+     * keyword子字段(如user_id.keyword)按照原字段处理
+     * @param field 字段名
+     * @return 字段不存在时返回null
+     */
+    public Object getField(String field) {
+        switch (field) {
+            case "_index":
+                return index;
+            case "_type":
+                return type;
+            case "_id":
+                return id;
+            case "_uid":
+                return type + "#" + id;
+        }
+        String path = field.endsWith(".keyword") ? field.substring(0, field.length() - ".keyword".length()) : field;
+        Object value = source;
+        for (String name : path.split("\\.")) {
+            if (!(value instanceof JSONObject))
+                return null;
+            value = ((JSONObject) value).get(name);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "StandInDocument{" +
+                "index='" + index + '\'' +
+                ", type='" + type + '\'' +
+                ", id='" + id + '\'' +
+                ", routing='" + routing + '\'' +
+                ", source=" + source +
+                '}';
+    }
+}
@@ -0,0 +1,520 @@
+package test.com.iss.bigdata.health.elasticsearch.standin;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.iss.bigdata.health.elasticsearch.client.ElasticSearchClientConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的Elasticsearch替身服务器, 用于在没有集群的环境中做集成测试和压力测试
+ * 支持服务实现用到的接口:
+ * <pre>
+ * POST /{index}/{type}/_search   查询, 带scroll参数时开启滚动查询
+ * POST /_msearch                 多查询
+ * POST /_search/scroll           滚动查询的下一页
+ * DELETE /_search/scroll         清除滚动查询
+ * POST /_bulk                    批量写入, 只支持index和create操作
+ * </pre>
+ * 可以模拟多个分片: 记录按照路由值(默认为_id)分配到分片, 带routing参数的查询只访问路由值所在的分片
+ * 每个请求可以注入固定延迟、随机抖动以及按概率出现的长尾延迟, 使吞吐量和尾延迟测试可以重复
+ * 用法:
+ * <pre>
+ * StandInElasticSearchServer server = new StandInElasticSearchServer();
+ * SyntheaDocuments.generate(server, 100, 50, 87L);
+ * server.start();
+ * RestHighLevelClient client = ElasticSearchClientFactory.create(server.clientConfig());
+ * </pre>
+ */
+public class StandInElasticSearchServer implements AutoCloseable {
+    private static final String DEFAULT_TYPE = "synthea";
+
+    /** (索引名, 记录) */
+    private final Map<String, List<StandInDocument>> indices = new ConcurrentHashMap<>();
+    /** (scroll id, 剩余的命中记录) */
+    private final Map<String, ScrollContext> scrolls = new ConcurrentHashMap<>();
+    private final AtomicLong scrollIds = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong shardSearchCount = new AtomicLong();
+    private final AtomicLong bulkRejections = new AtomicLong();
+    private final AtomicLong generatedIds = new AtomicLong();
+    private volatile int shards = 1;
+    private volatile String failingIndex;
+
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double tailProbability;
+    private volatile long tailLatencyMillis;
+
+    private final int threads;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public StandInElasticSearchServer() {
+        this(8);
+    }
+
+    /**
+     * @param threads 处理请求的线程数
+     */
+    public StandInElasticSearchServer(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * 在随机端口上启动
+     */
+    public StandInElasticSearchServer start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * @param port 端口, 为0时使用随机端口
+     */
+    public synchronized StandInElasticSearchServer start(int port) throws IOException {
+        if (server != null)
+            throw new IllegalStateException("替身服务器已经启动");
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server == null)
+            return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return 服务器地址, 如http://localhost:52345
+     */
+    public String getHost() {
+        if (server == null)
+            throw new IllegalStateException("替身服务器还没有启动");
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return 连接到替身服务器的客户端配置
+     */
+    public ElasticSearchClientConfig clientConfig() {
+        ElasticSearchClientConfig config = new ElasticSearchClientConfig();
+        config.setHosts(new ArrayList<>(Collections.singletonList(getHost())));
+        return config;
+    }
+
+    /**
+     * 设置每个请求的注入延迟, 实际延迟为latencyMillis加上[0, jitterMillis)内的随机值
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * 设置长尾延迟, 每个请求以probability的概率额外等待tailLatencyMillis
+     */
+    public void setTailLatency(double probability, long tailLatencyMillis) {
+        this.tailProbability = probability;
+        this.tailLatencyMillis = tailLatencyMillis;
+    }
+
+    /**
+     * @return 已处理的请求数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 设置每个索引的分片数, 默认为1
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return 所有查询访问过的分片数之和, 每个查询(包括_msearch中的每个子查询)在每个索引上访问的分片各计一次
+     */
+    public long getShardSearchCount() {
+        return shardSearchCount.get();
+    }
+
+    /**
+     * 之后的bulk请求中的前count条记录以429(es_rejected_execution_exception)拒绝, 模拟写入队列已满的集群
+     */
+    public void rejectBulkItems(long count) {
+        bulkRejections.set(count);
+    }
+
+    /**
+     * 之后访问该索引的查询都以400(search_phase_execution_exception)失败, 为null时恢复正常
+     */
+    public void setFailingIndex(String indexName) {
+        this.failingIndex = indexName;
+    }
+
+    /**
+     * 添加一条记录, 类型为synthea
+     */
+    public void index(String indexName, String id, JSONObject source) {
+        index(new StandInDocument(indexName, DEFAULT_TYPE, id, source));
+    }
+
+    public void index(StandInDocument document) {
+        indices.computeIfAbsent(document.getIndex(), k -> new CopyOnWriteArrayList<>()).add(document);
+    }
+
+    /**
+     * @return 某个索引中的记录数
+     */
+    public int count(String indexName) {
+        List<StandInDocument> documents = indices.get(indexName);
+        return documents == null ? 0 : documents.size();
+    }
+
+    /**
+     * 清空全部记录和滚动查询
+     */
+    public void clear() {
+        indices.clear();
+        scrolls.clear();
+    }
+
+    // ---------------------------------------------------------------- 请求处理
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            injectLatency();
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            byte[] body = read(exchange.getRequestBody());
+
+            if (path.equals("/_msearch") || path.endsWith("/_msearch")) {
+                respond(exchange, 200, multiSearch(body));
+            } else if (path.equals("/_bulk") || path.endsWith("/_bulk")) {
+                respond(exchange, 200, bulk(body));
+            } else if (path.startsWith("/_search/scroll")) {
+                if ("DELETE".equals(method))
+                    respond(exchange, 200, clearScroll(body));
+                else
+                    respond(exchange, 200, scroll(body, path, params));
+            } else if (path.endsWith("/_search")) {
+                respond(exchange, 200, search(path, params, body.length == 0 ? null : JSON.parseObject(new String(body, StandardCharsets.UTF_8))));
+            } else if (path.equals("/")) {
+                JSONObject info = new JSONObject(true);
+                info.put("name", "stand-in");
+                info.put("cluster_name", "stand-in");
+                info.put("version", Collections.singletonMap("number", "6.1.1"));
+                respond(exchange, 200, info);
+            } else {
+                respond(exchange, 400, error("替身服务器不支持的请求: " + method + " " + path, 400));
+            }
+        } catch (Exception e) {
+            respond(exchange, 400, error(e.toString(), 400));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void injectLatency() throws InterruptedException {
+        long delay = latencyMillis;
+        if (jitterMillis > 0)
+            delay += ThreadLocalRandom.current().nextLong(jitterMillis);
+        if (tailProbability > 0 && ThreadLocalRandom.current().nextDouble() < tailProbability)
+            delay += tailLatencyMillis;
+        if (delay > 0)
+            Thread.sleep(delay);
+    }
+
+    private JSONObject search(String path, Map<String, String> params, JSONObject source) {
+        // /{index}/{type}/_search 或 /{index}/_search 或 /_search
+        String[] parts = path.substring(1).split("/");
+        String indexNames = parts.length >= 2 ? parts[0] : null;
+        String types = parts.length >= 3 ? parts[1] : null;
+        return search(indexNames, types, params.get("routing"), source,
+                      params.get("scroll") != null, "true".equals(params.get("typed_keys")));
+    }
+
+    private JSONObject search(String indexNames, String types, String routing, JSONObject source,
+                              boolean scroll, boolean typedKeys) {
+        long startNanos = System.nanoTime();
+        String failing = failingIndex;
+        if (failing != null && indexNames != null && Arrays.asList(indexNames.split(",")).contains(failing))
+            throw new IllegalStateException("all shards failed on " + failing);
+        StandInSearch search = new StandInSearch(source);
+        List<StandInDocument> matched = search.matches(documents(indexNames, types, routing));
+
+        int from = Math.min(search.from(), matched.size());
+        int to = Math.min(from + search.size(), matched.size());
+        List<StandInDocument> page = matched.subList(from, to);
+
+        JSONObject response = new JSONObject(true);
+        if (scroll) {
+            String scrollId = "stand-in-scroll-" + scrollIds.incrementAndGet();
+            scrolls.put(scrollId, new ScrollContext(search, new ArrayList<>(matched.subList(to, matched.size())), matched.size()));
+            response.put("_scroll_id", scrollId);
+        }
+        response.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        response.put("timed_out", false);
+        response.put("_shards", shards());
+        response.put("hits", hits(search, page, matched.size()));
+        JSONObject aggregations = search.aggregations(matched, typedKeys);
+        if (aggregations != null)
+            response.put("aggregations", aggregations);
+        return response;
+    }
+
+    private JSONObject scroll(byte[] body, String path, Map<String, String> params) {
+        String scrollId = params.get("scroll_id");
+        if (body.length > 0)
+            scrollId = JSON.parseObject(new String(body, StandardCharsets.UTF_8)).getString("scroll_id");
+        else if (scrollId == null && path.length() > "/_search/scroll/".length())
+            scrollId = path.substring("/_search/scroll/".length());
+
+        ScrollContext context = scrolls.get(scrollId);
+        if (context == null)
+            throw new IllegalArgumentException("No search context found for id [" + scrollId + "]");
+
+        List<StandInDocument> page = context.next(context.search.size());
+        JSONObject response = new JSONObject(true);
+        response.put("_scroll_id", scrollId);
+        response.put("took", 0);
+        response.put("timed_out", false);
+        response.put("_shards", shards());
+        response.put("hits", hits(context.search, page, context.total));
+        return response;
+    }
+
+    private JSONObject clearScroll(byte[] body) {
+        int freed = 0;
+        Object scrollIds = body.length == 0 ? null : JSON.parseObject(new String(body, StandardCharsets.UTF_8)).get("scroll_id");
+        if (scrollIds instanceof JSONArray) {
+            for (Object scrollId : (JSONArray) scrollIds)
+                if (scrolls.remove(scrollId.toString()) != null)
+                    freed++;
+        } else if (scrollIds != null) {
+            if (scrolls.remove(scrollIds.toString()) != null)
+                freed++;
+        }
+        JSONObject response = new JSONObject(true);
+        response.put("succeeded", true);
+        response.put("num_freed", freed);
+        return response;
+    }
+
+    // 每个子查询占两行: 请求头与查询语句
+    private JSONObject multiSearch(byte[] body) {
+        long startNanos = System.nanoTime();
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            JSONObject header = JSON.parseObject(lines[i]);
+            try {
+                JSONObject response = search(header.getString("index"), header.getString("type"), header.getString("routing"),
+                        JSON.parseObject(lines[i + 1]), false, false);
+                response.put("status", 200);
+                responses.add(response);
+            } catch (IllegalStateException e) {
+                responses.add(error("search_phase_execution_exception", e.getMessage(), 400));
+            } catch (Exception e) {
+                responses.add(error(e.toString(), 400));
+            }
+        }
+        JSONObject response = new JSONObject(true);
+        response.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        response.put("responses", responses);
+        return response;
+    }
+
+    // 每条记录占两行: 操作(索引、类型、id、路由)与记录内容
+    private JSONObject bulk(byte[] body) {
+        long startNanos = System.nanoTime();
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        JSONArray items = new JSONArray();
+        boolean errors = false;
+        for (int i = 0; i + 1 < lines.length; i += 2) {
+            JSONObject action = JSON.parseObject(lines[i]);
+            String operation = action.keySet().iterator().next();
+            JSONObject metadata = action.getJSONObject(operation);
+            String id = metadata.getString("_id");
+            if (id == null)
+                id = "stand-in-" + generatedIds.incrementAndGet();
+
+            JSONObject result = new JSONObject(true);
+            result.put("_index", metadata.getString("_index"));
+            result.put("_type", metadata.getString("_type"));
+            result.put("_id", id);
+            if (!"index".equals(operation) && !"create".equals(operation)) {
+                result.put("status", 400);
+                result.put("error", errorCause("illegal_argument_exception", "替身服务器不支持的操作: " + operation));
+                errors = true;
+            } else if (bulkRejections.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                result.put("status", 429);
+                result.put("error", errorCause("es_rejected_execution_exception", "rejected execution of stand-in bulk item"));
+                errors = true;
+            } else {
+                String routing = metadata.getString("routing") != null ? metadata.getString("routing") : metadata.getString("_routing");
+                String type = metadata.getString("_type") == null ? DEFAULT_TYPE : metadata.getString("_type");
+                index(new StandInDocument(metadata.getString("_index"), type, id, JSON.parseObject(lines[i + 1]), routing));
+                result.put("_version", 1);
+                result.put("result", "created");
+                result.put("_shards", shards());
+                result.put("_seq_no", 0);
+                result.put("_primary_term", 1);
+                result.put("status", 201);
+            }
+            items.add(Collections.singletonMap(operation, result));
+        }
+        JSONObject response = new JSONObject(true);
+        response.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        response.put("errors", errors);
+        response.put("items", items);
+        return response;
+    }
+
+    private List<StandInDocument> documents(String indexNames, String types, String routing) {
+        Set<String> typeSet = types == null || types.isEmpty() || "_all".equals(types)
+                ? null : new HashSet<>(Arrays.asList(types.split(",")));
+        Collection<String> names = indexNames == null || indexNames.isEmpty() || "_all".equals(indexNames)
+                ? indices.keySet() : new LinkedHashSet<>(Arrays.asList(indexNames.split(",")));
+        int shardCount = shards;
+        // 没有路由值时访问全部分片
+        Set<Integer> shardSet = null;
+        if (routing != null && !routing.isEmpty()) {
+            shardSet = new HashSet<>();
+            for (String value : routing.split(","))
+                shardSet.add(StandInDocument.shard(value, shardCount));
+        }
+        List<StandInDocument> documents = new ArrayList<>();
+        for (String name : names) {
+            List<StandInDocument> indexDocuments = indices.get(name);
+            if (indexDocuments == null)
+                continue;
+            shardSearchCount.addAndGet(shardSet == null ? shardCount : shardSet.size());
+            for (StandInDocument document : indexDocuments)
+                if ((typeSet == null || typeSet.contains(document.getType()))
+                        && (shardSet == null || shardSet.contains(document.shard(shardCount))))
+                    documents.add(document);
+        }
+        return documents;
+    }
+
+    private static JSONObject hits(StandInSearch search, List<StandInDocument> page, int total) {
+        JSONArray hitArray = new JSONArray();
+        for (StandInDocument document : page)
+            hitArray.add(search.toHit(document));
+        JSONObject hits = new JSONObject(true);
+        hits.put("total", total);
+        hits.put("max_score", null);
+        hits.put("hits", hitArray);
+        return hits;
+    }
+
+    private static JSONObject shards() {
+        JSONObject shards = new JSONObject(true);
+        shards.put("total", 1);
+        shards.put("successful", 1);
+        shards.put("skipped", 0);
+        shards.put("failed", 0);
+        return shards;
+    }
+
+    private static JSONObject errorCause(String type, String reason) {
+        JSONObject cause = new JSONObject(true);
+        cause.put("type", type);
+        cause.put("reason", reason);
+        return cause;
+    }
+
+    private static JSONObject error(String reason, int status) {
+        return error("stand_in_exception", reason, status);
+    }
+
+    private static JSONObject error(String type, String reason, int status) {
+        JSONObject cause = errorCause(type, reason);
+        JSONObject error = new JSONObject(true);
+        error.put("root_cause", Collections.singletonList(cause));
+        error.put("type", type);
+        error.put("reason", reason);
+        JSONObject response = new JSONObject(true);
+        response.put("error", error);
+        response.put("status", status);
+        return response;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject response) throws IOException {
+        byte[] bytes = JSON.toJSONString(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> params(String rawQuery) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    /**
+     * 滚动查询剩余的命中记录
+     */
+    private static final class ScrollContext {
+        private final StandInSearch search;
+        private final List<StandInDocument> remaining;
+        private final int total;
+        private int position;
+
+        ScrollContext(StandInSearch search, List<StandInDocument> remaining, int total) {
+            this.search = search;
+            this.remaining = remaining;
+            this.total = total;
+        }
+
+        synchronized List<StandInDocument> next(int size) {
+            int to = Math.min(position + size, remaining.size());
+            List<StandInDocument> page = new ArrayList<>(remaining.subList(position, to));
+            position = to;
+            return page;
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package test.com.iss.bigdata.health.elasticsearch.standin;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 替身服务器对一个查询语句的求值, 覆盖服务实现中用到的查询子集:
+ * bool(must/filter/should/must_not)、term、terms、range、match_all、ids查询,
+ * 排序与search_after、_source字段过滤、docvalue_fields、slice以及date_histogram/stats/percentiles聚合
+ */
+class StandInSearch {
+    private final JSONObject source;
+    private final List<SortField> sortFields = new ArrayList<>();
+
+    /**
+     * @param source 查询语句, 即_search请求体, 可以为null
+     */
+    StandInSearch(JSONObject source) {
+        this.source = source == null ? new JSONObject() : source;
+        Object sort = this.source.get("sort");
+        if (sort instanceof JSONArray)
+            for (Object sortField : (JSONArray) sort)
+                sortFields.add(SortField.parse(sortField));
+        else if (sort != null)
+            sortFields.add(SortField.parse(sort));
+    }
+
+    int size() {
+        return source.containsKey("size") ? source.getIntValue("size") : 10;
+    }
+
+    int from() {
+        return source.getIntValue("from");
+    }
+
+    /**
+     * @return 符合查询条件、slice, 且位于search_after之后的全部记录, 按照排序键排列
+     */
+    List<StandInDocument> matches(Collection<StandInDocument> documents) {
+        JSONObject query = source.getJSONObject("query");
+        JSONObject slice = source.getJSONObject("slice");
+        JSONArray searchAfter = source.getJSONArray("search_after");
+
+        // 每条记录的排序值只计算一次
+        Map<StandInDocument, List<Object>> sortValues = new IdentityHashMap<>();
+        List<StandInDocument> matched = new ArrayList<>();
+        for (StandInDocument document : documents) {
+            if (query != null && !matches(query, document))
+                continue;
+            if (slice != null && Math.floorMod(document.getId().hashCode(), slice.getIntValue("max")) != slice.getIntValue("id"))
+                continue;
+            if (!sortFields.isEmpty())
+                sortValues.put(document, sortValues(document));
+            if (searchAfter != null && compare(sortValues.get(document), searchAfter) <= 0)
+                continue;
+            matched.add(document);
+        }
+        if (!sortFields.isEmpty())
+            matched.sort((a, b) -> compare(sortValues.get(a), sortValues.get(b)));
+        return matched;
+    }
+
+    /**
+     * 将记录转换为命中记录
+     */
+    JSONObject toHit(StandInDocument document) {
+        JSONObject hit = new JSONObject(true);
+        hit.put("_index", document.getIndex());
+        hit.put("_type", document.getType());
+        hit.put("_id", document.getId());
+        hit.put("_score", sortFields.isEmpty() ? 1.0 : null);
+
+        Object sourceFilter = source.get("_source");
+        if (!Boolean.FALSE.equals(sourceFilter))
+            hit.put("_source", filterSource(document.getSource(), sourceFilter));
+
+        JSONArray docValueFields = source.getJSONArray("docvalue_fields");
+        if (docValueFields != null) {
+            JSONObject fields = new JSONObject(true);
+            for (Object field : docValueFields) {
+                Object value = document.getField(field.toString());
+                // 与Elasticsearch一致, 日期类型的docvalue为毫秒时间戳
+                Long millis = value instanceof String ? toMillis(value) : null;
+                if (value != null)
+                    fields.put(field.toString(), Collections.singletonList(millis != null ? millis : value));
+            }
+            hit.put("fields", fields);
+        }
+
+        if (!sortFields.isEmpty())
+            hit.put("sort", sortValues(document));
+        return hit;
+    }
+
+    /**
+     * @param typedKeys 是否在聚合名称前加上聚合类型, RestHighLevelClient会带上typed_keys参数
+     * @return 聚合结果, 没有聚合时返回null
+     */
+    JSONObject aggregations(List<StandInDocument> matched, boolean typedKeys) {
+        JSONObject aggregations = source.containsKey("aggregations") ? source.getJSONObject("aggregations") : source.getJSONObject("aggs");
+        return aggregations == null ? null : aggregate(aggregations, matched, typedKeys);
+    }
+
+    // ---------------------------------------------------------------- 查询
+
+    private static boolean matches(JSONObject query, StandInDocument document) {
+        for (String type : query.keySet()) {
+            JSONObject body = query.getJSONObject(type);
+            switch (type) {
+                case "match_all":
+                    break;
+                case "bool":
+                    if (!matchesBool(body, document))
+                        return false;
+                    break;
+                case "term":
+                    if (!matchesTerm(body, document))
+                        return false;
+                    break;
+                case "terms":
+                    if (!matchesTerms(body, document))
+                        return false;
+                    break;
+                case "range":
+                    if (!matchesRange(body, document))
+                        return false;
+                    break;
+                case "ids":
+                    if (!body.getJSONArray("values").contains(document.getId()))
+                        return false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("替身服务器不支持" + type + "查询");
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesBool(JSONObject bool, StandInDocument document) {
+        for (JSONObject clause : clauses(bool, "must"))
+            if (!matches(clause, document))
+                return false;
+        for (JSONObject clause : clauses(bool, "filter"))
+            if (!matches(clause, document))
+                return false;
+        for (JSONObject clause : clauses(bool, "must_not"))
+            if (matches(clause, document))
+                return false;
+
+        List<JSONObject> should = clauses(bool, "should");
+        int minimumShouldMatch = bool.containsKey("minimum_should_match")
+                ? bool.getIntValue("minimum_should_match")
+                : clauses(bool, "must").isEmpty() && clauses(bool, "filter").isEmpty() && !should.isEmpty() ? 1 : 0;
+        int matched = 0;
+        for (JSONObject clause : should)
+            if (matches(clause, document))
+                matched++;
+        return matched >= minimumShouldMatch;
+    }
+
+    private static List<JSONObject> clauses(JSONObject bool, String occur) {
+        Object value = bool.get(occur);
+        List<JSONObject> clauses = new ArrayList<>();
+        if (value instanceof JSONArray)
+            for (Object clause : (JSONArray) value)
+                clauses.add((JSONObject) clause);
+        else if (value instanceof JSONObject)
+            clauses.add((JSONObject) value);
+        return clauses;
+    }
+
+    private static boolean matchesTerm(JSONObject term, StandInDocument document) {
+        for (String field : term.keySet()) {
+            Object expected = term.get(field);
+            if (expected instanceof JSONObject)
+                expected = ((JSONObject) expected).get("value");
+            if (!valueEquals(document.getField(field), expected))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean matchesTerms(JSONObject terms, StandInDocument document) {
+        for (String field : terms.keySet()) {
+            if ("boost".equals(field))
+                continue;
+            Object actual = document.getField(field);
+            boolean found = false;
+            for (Object expected : terms.getJSONArray(field))
+                if (valueEquals(actual, expected)) {
+                    found = true;
+                    break;
+                }
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean matchesRange(JSONObject range, StandInDocument document) {
+        for (String field : range.keySet()) {
+            JSONObject bounds = range.getJSONObject(field);
+            Object actual = document.getField(field);
+            if (actual == null)
+                return false;
+            Object lower = bounds.containsKey("from") ? bounds.get("from") : bounds.containsKey("gte") ? bounds.get("gte") : bounds.get("gt");
+            Object upper = bounds.containsKey("to") ? bounds.get("to") : bounds.containsKey("lte") ? bounds.get("lte") : bounds.get("lt");
+            boolean includeLower = bounds.containsKey("include_lower") ? bounds.getBooleanValue("include_lower") : !bounds.containsKey("gt");
+            boolean includeUpper = bounds.containsKey("include_upper") ? bounds.getBooleanValue("include_upper") : !bounds.containsKey("lt");
+            if (lower != null) {
+                int cmp = compareValues(actual, lower);
+                if (cmp < 0 || (cmp == 0 && !includeLower))
+                    return false;
+            }
+            if (upper != null) {
+                int cmp = compareValues(actual, upper);
+                if (cmp > 0 || (cmp == 0 && !includeUpper))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean valueEquals(Object actual, Object expected) {
+        if (actual == null || expected == null)
+            return actual == expected;
+        if (actual instanceof Number && expected instanceof Number)
+            return ((Number) actual).doubleValue() == ((Number) expected).doubleValue();
+        return actual.toString().equals(expected.toString());
+    }
+
+    /**
+     * 比较字段值, 日期字符串按时间比较, 数字按数值比较
+     */
+    private static int compareValues(Object actual, Object bound) {
+        Long actualMillis = toMillis(actual);
+        Long boundMillis = toMillis(bound);
+        if (actualMillis != null && boundMillis != null && (actual instanceof String || bound instanceof String))
+            return Long.compare(actualMillis, boundMillis);
+        if (actual instanceof Number && bound instanceof Number)
+            return Double.compare(((Number) actual).doubleValue(), ((Number) bound).doubleValue());
+        return actual.toString().compareTo(bound.toString());
+    }
+
+    static Long toMillis(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value == null)
+            return null;
+        String text = value.toString();
+        // 只解析形如2013-12-13或2013-12-13T00:00:00.000Z的字符串, 避免对普通字符串抛出解析异常
+        if (text.length() < 10 || text.charAt(4) != '-' || text.charAt(7) != '-' || !Character.isDigit(text.charAt(0)))
+            return null;
+        try {
+            if (text.length() == 10)
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------- 排序
+
+    private List<Object> sortValues(StandInDocument document) {
+        List<Object> values = new ArrayList<>(sortFields.size());
+        for (SortField sortField : sortFields)
+            values.add(sortField.value(document));
+        return values;
+    }
+
+    private int compare(List<Object> a, List<Object> b) {
+        for (int i = 0; i < sortFields.size() && i < a.size() && i < b.size(); i++) {
+            int cmp = compareSortValues(a.get(i), b.get(i));
+            if (cmp != 0)
+                return sortFields.get(i).ascending ? cmp : -cmp;
+        }
+        return 0;
+    }
+
+    private static int compareSortValues(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number)
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static final class SortField {
+        private final String field;
+        private final boolean ascending;
+
+        private SortField(String field, boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+
+        static SortField parse(Object sort) {
+            if (sort instanceof String)
+                return new SortField((String) sort, !"_score".equals(sort));
+            JSONObject sortObject = (JSONObject) sort;
+            String field = sortObject.keySet().iterator().next();
+            Object order = sortObject.get(field);
+            if (order instanceof JSONObject)
+                order = ((JSONObject) order).get("order");
+            return new SortField(field, order == null || "asc".equals(order));
+        }
+
+        /**
+         * 日期字段的排序值为毫秒时间戳, 缺失值按照Elasticsearch的方式排在最后
+         */
+        Object value(StandInDocument document) {
+            Object value = document.getField(field);
+            if (value == null)
+                return ascending ? Long.MAX_VALUE : Long.MIN_VALUE;
+            if (value instanceof Number)
+                return value instanceof Double || value instanceof Float || value instanceof java.math.BigDecimal
+                        ? ((Number) value).doubleValue() : ((Number) value).longValue();
+            Long millis = toMillis(value);
+            return millis != null && !"_uid".equals(field) && !"_id".equals(field) ? millis : value.toString();
+        }
+    }
+
+    // ---------------------------------------------------------------- _source过滤
+
+    private static JSONObject filterSource(JSONObject source, Object filter) {
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        if (filter instanceof JSONObject) {
+            JSONObject filterObject = (JSONObject) filter;
+            addGlobs(includes, filterObject.containsKey("includes") ? filterObject.get("includes") : filterObject.get("include"));
+            addGlobs(excludes, filterObject.containsKey("excludes") ? filterObject.get("excludes") : filterObject.get("exclude"));
+        } else if (filter != null && !Boolean.TRUE.equals(filter)) {
+            addGlobs(includes, filter);
+        }
+        if (includes.isEmpty() && excludes.isEmpty())
+            return source;
+        return filterObject(source, "", includes, excludes);
+    }
+
+    private static void addGlobs(List<String> globs, Object value) {
+        if (value instanceof JSONArray)
+            for (Object glob : (JSONArray) value)
+                globs.add(glob.toString());
+        else if (value != null)
+            globs.add(value.toString());
+    }
+
+    private static JSONObject filterObject(JSONObject object, String prefix, List<String> includes, List<String> excludes) {
+        JSONObject filtered = new JSONObject(true);
+        for (Map.Entry<String, Object> entry : object.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (matchesAny(excludes, path))
+                continue;
+            boolean included = includes.isEmpty() || matchesAny(includes, path);
+            if (entry.getValue() instanceof JSONObject && (included || isParentOfAny(includes, path))) {
+                // 已经被包含的对象只需要继续应用excludes
+                JSONObject child = filterObject((JSONObject) entry.getValue(), path + ".",
+                        included ? Collections.emptyList() : includes, excludes);
+                if (included || !child.isEmpty())
+                    filtered.put(entry.getKey(), child);
+            } else if (included) {
+                filtered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return filtered;
+    }
+
+    private static boolean matchesAny(List<String> globs, String path) {
+        for (String glob : globs) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : glob.split("\\*", -1)) {
+                if (regex.length() > 0)
+                    regex.append(".*");
+                regex.append(Pattern.quote(part));
+            }
+            if (Pattern.matches(regex.toString(), path))
+                return true;
+        }
+        return false;
+    }
+
+    // 路径是某个glob的上级对象, 如signs对于signs.glucose或signs.*
+    private static boolean isParentOfAny(List<String> globs, String path) {
+        for (String glob : globs) {
+            int wildcard = glob.indexOf('*');
+            String fixedPrefix = wildcard < 0 ? glob : glob.substring(0, wildcard);
+            if (fixedPrefix.startsWith(path + ".") || (wildcard >= 0 && (path + ".").startsWith(fixedPrefix)))
+                return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------- 聚合
+
+    private static JSONObject aggregate(JSONObject aggregations, List<StandInDocument> documents, boolean typedKeys) {
+        JSONObject results = new JSONObject(true);
+        for (String name : aggregations.keySet()) {
+            JSONObject aggregation = aggregations.getJSONObject(name);
+            JSONObject subAggregations = aggregation.containsKey("aggregations")
+                    ? aggregation.getJSONObject("aggregations") : aggregation.getJSONObject("aggs");
+            if (aggregation.containsKey("date_histogram")) {
+                results.put(typedKeys ? "date_histogram#" + name : name,
+                        dateHistogram(aggregation.getJSONObject("date_histogram"), subAggregations, documents, typedKeys));
+            } else if (aggregation.containsKey("stats")) {
+                results.put(typedKeys ? "stats#" + name : name, stats(values(aggregation.getJSONObject("stats"), documents)));
+            } else if (aggregation.containsKey("percentiles")) {
+                JSONObject percentiles = aggregation.getJSONObject("percentiles");
+                results.put(typedKeys ? "tdigest_percentiles#" + name : name,
+                        percentiles(values(percentiles, documents), percentiles.getJSONArray("percents")));
+            } else {
+                throw new IllegalArgumentException("替身服务器不支持聚合" + aggregation.keySet());
+            }
+        }
+        return results;
+    }
+
+    private static JSONObject dateHistogram(JSONObject histogram, JSONObject subAggregations,
+                                            List<StandInDocument> documents, boolean typedKeys) {
+        String field = histogram.getString("field");
+        String interval = histogram.getString("interval");
+        long minDocCount = histogram.containsKey("min_doc_count") ? histogram.getLongValue("min_doc_count") : 0;
+
+        TreeMap<Long, List<StandInDocument>> buckets = new TreeMap<>();
+        for (StandInDocument document : documents) {
+            Long millis = toMillis(document.getField(field));
+            if (millis != null)
+                buckets.computeIfAbsent(roundDown(millis, interval), k -> new ArrayList<>()).add(document);
+        }
+        if (minDocCount == 0 && !buckets.isEmpty())
+            for (long key = buckets.firstKey(); key < buckets.lastKey(); key = next(key, interval))
+                buckets.putIfAbsent(key, new ArrayList<>());
+
+        JSONArray bucketArray = new JSONArray();
+        for (Map.Entry<Long, List<StandInDocument>> entry : buckets.entrySet()) {
+            if (entry.getValue().size() < minDocCount)
+                continue;
+            JSONObject bucket = new JSONObject(true);
+            bucket.put("key_as_string", Instant.ofEpochMilli(entry.getKey()).toString());
+            bucket.put("key", entry.getKey());
+            bucket.put("doc_count", entry.getValue().size());
+            if (subAggregations != null)
+                bucket.putAll(aggregate(subAggregations, entry.getValue(), typedKeys));
+            bucketArray.add(bucket);
+        }
+        JSONObject result = new JSONObject(true);
+        result.put("buckets", bucketArray);
+        return result;
+    }
+
+    private static long roundDown(long millis, String interval) {
+        ZonedDateTime time = Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case "1s": case "second":
+                return time.truncatedTo(ChronoUnit.SECONDS).toInstant().toEpochMilli();
+            case "1m": case "minute":
+                return time.truncatedTo(ChronoUnit.MINUTES).toInstant().toEpochMilli();
+            case "1h": case "hour":
+                return time.truncatedTo(ChronoUnit.HOURS).toInstant().toEpochMilli();
+            case "1d": case "day":
+                return time.truncatedTo(ChronoUnit.DAYS).toInstant().toEpochMilli();
+            case "1w": case "week":
+                return time.truncatedTo(ChronoUnit.DAYS).with(DayOfWeek.MONDAY).toInstant().toEpochMilli();
+            case "1M": case "month":
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1).toInstant().toEpochMilli();
+            case "1q": case "quarter":
+                return time.truncatedTo(ChronoUnit.DAYS).with(IsoFields.DAY_OF_QUARTER, 1).toInstant().toEpochMilli();
+            case "1y": case "year":
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1).toInstant().toEpochMilli();
+            default:
+                long fixed = fixedIntervalMillis(interval);
+                return Math.floorDiv(millis, fixed) * fixed;
+        }
+    }
+
+    private static long next(long key, String interval) {
+        ZonedDateTime time = Instant.ofEpochMilli(key).atZone(ZoneOffset.UTC);
+        switch (interval) {
+            case "1w": case "week":
+                return time.plusWeeks(1).toInstant().toEpochMilli();
+            case "1M": case "month":
+                return time.plusMonths(1).toInstant().toEpochMilli();
+            case "1q": case "quarter":
+                return time.plusMonths(3).toInstant().toEpochMilli();
+            case "1y": case "year":
+                return time.plusYears(1).toInstant().toEpochMilli();
+            case "second": case "minute": case "hour": case "day":
+                return key + fixedIntervalMillis("1" + interval.charAt(0));
+            default:
+                return key + fixedIntervalMillis(interval);
+        }
+    }
+
+    private static long fixedIntervalMillis(String interval) {
+        String number = interval.replaceAll("[^0-9]", "");
+        String unit = interval.replaceAll("[0-9]", "");
+        long value = number.isEmpty() ? 1 : Long.parseLong(number);
+        switch (unit) {
+            case "ms":
+                return value;
+            case "s":
+                return value * 1000L;
+            case "m":
+                return value * 60_000L;
+            case "h":
+                return value * 3_600_000L;
+            case "d":
+                return value * 86_400_000L;
+            default:
+                throw new IllegalArgumentException("替身服务器不支持时间区间" + interval);
+        }
+    }
+
+    private static double[] values(JSONObject metric, List<StandInDocument> documents) {
+        String field = metric.getString("field");
+        double[] values = new double[documents.size()];
+        int count = 0;
+        for (StandInDocument document : documents) {
+            Object value = document.getField(field);
+            if (value instanceof Number)
+                values[count++] = ((Number) value).doubleValue();
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private static JSONObject stats(double[] values) {
+        JSONObject stats = new JSONObject(true);
+        stats.put("count", values.length);
+        if (values.length == 0) {
+            stats.put("min", null);
+            stats.put("max", null);
+            stats.put("avg", null);
+            stats.put("sum", 0.0);
+            return stats;
+        }
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        for (double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        stats.put("min", min);
+        stats.put("max", max);
+        stats.put("avg", sum / values.length);
+        stats.put("sum", sum);
+        return stats;
+    }
+
+    // 线性插值的精确百分位数
+    private static JSONObject percentiles(double[] values, JSONArray percents) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        JSONObject percentileValues = new JSONObject(true);
+        for (Object percentObject : percents) {
+            double percent = ((Number) percentObject).doubleValue();
+            Double value = null;
+            if (sorted.length > 0) {
+                double rank = percent / 100 * (sorted.length - 1);
+                int lower = (int) Math.floor(rank);
+                int upper = Math.min(lower + 1, sorted.length - 1);
+                value = sorted[lower] + (sorted[upper] - sorted[lower]) * (rank - lower);
+            }
+            percentileValues.put(String.valueOf(percent), value);
+        }
+        JSONObject result = new JSONObject(true);
+        result.put("values", percentileValues);
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+package test.com.iss.bigdata.health.elasticsearch.standin;
+
+import com.alibaba.fastjson.JSONObject;
+import com.iss.bigdata.health.elasticsearch.help.ObservationSeries;
+import com.iss.bigdata.health.elasticsearch.help.UserRouting;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * 生成synthea格式的测试数据, 相同的参数总是生成相同的数据
+ * 用户id为the-user-0到the-user-(userCount-1), 每个用户在每个事件索引中各有eventsPerIndex条记录, 另有一条patient记录
+ * 与{@link com.iss.bigdata.health.elasticsearch.help.UserRouting}一样, 所有记录都以user_id作为路由值
+ */
+public final class SyntheaDocuments {
+    private static final String[][] CODES = {
+            {"44054006", "Diabetes"}, {"38341003", "Hypertension"}, {"15777000", "Prediabetes"},
+            {"195662009", "Acute viral pharyngitis (disorder)"}, {"10509002", "Acute bronchitis (disorder)"},
+            {"860975", "24 HR Metformin hydrochloride 500 MG Extended Release Oral Tablet"},
+            {"314076", "lisinopril 10 MG Oral Tablet"}, {"698360004", "Diabetes self management plan"},
+            {"185349003", "Outpatient Encounter"}, {"50849002", "Emergency Encounter"},
+            {"140", "Influenza  seasonal  injectable  preservative free"}, {"113", "Td (adult) preservative free"}
+    };
+    private static final String[] REASONS = {"Diabetes", "Hypertension", "Acute bronchitis (disorder)", ""};
+    private static final String[][] ALLERGIES = {
+            {"419474003", "Allergy to mould"}, {"232347008", "Dander (animal) allergy"},
+            {"300916003", "Latex allergy"}, {"91935009", "Allergy to peanuts"}
+    };
+    private static final LocalDate FIRST_DATE = LocalDate.of(2000, 1, 1);
+
+    private SyntheaDocuments() {
+    }
+
+    /**
+     * 生成测试数据并放入替身服务器
+     * @param server 替身服务器
+     * @param userCount 用户数
+     * @param eventsPerIndex 每个用户在每个事件索引中的记录数
+     * @param seed 随机种子
+     */
+    public static void generate(StandInElasticSearchServer server, int userCount, int eventsPerIndex, long seed) {
+        Random random = new Random(seed);
+        for (int user = 0; user < userCount; user++) {
+            String userId = "the-user-" + user;
+            index(server, "patient", uuid(random), patient(userId, random));
+            for (int i = 0; i < eventsPerIndex; i++) {
+                LocalDate date = FIRST_DATE.plusDays(random.nextInt(365 * 18));
+                index(server, "conditions", uuid(random), clinical(userId, date, random));
+                index(server, "medications", uuid(random), clinical(userId, date.plusDays(random.nextInt(30)), random));
+                index(server, "careplans", uuid(random), clinical(userId, date.plusDays(random.nextInt(30)), random));
+                index(server, "encounters", uuid(random), clinical(userId, date.minusDays(random.nextInt(30)), random));
+                index(server, "immunizations", uuid(random), clinical(userId, date.plusDays(random.nextInt(300)), random));
+                index(server, "allergies", uuid(random), allergy(userId, date.plusDays(random.nextInt(300)), random));
+                index(server, "observation", uuid(random), observation(userId, date.plusDays(random.nextInt(300)), random));
+            }
+        }
+    }
+
+    private static void index(StandInElasticSearchServer server, String indexName, String id, JSONObject source) {
+        server.index(new StandInDocument(indexName, "synthea", id, source, UserRouting.routing(source)));
+    }
+
+    private static JSONObject patient(String userId, Random random) {
+        LocalDate birthdate = LocalDate.of(1930 + random.nextInt(70), 1 + random.nextInt(12), 1 + random.nextInt(28));
+        JSONObject source = base(userId, birthdate);
+        source.put("name", "Patient " + userId.substring("the-user-".length()));
+        source.put("birthdate", birthdate.toString());
+        source.put("gender", random.nextBoolean() ? "M" : "F");
+        source.put("race", random.nextBoolean() ? "white" : "asian");
+        return source;
+    }
+
+    private static JSONObject clinical(String userId, LocalDate date, Random random) {
+        String[] code = CODES[random.nextInt(CODES.length)];
+        String reason = REASONS[random.nextInt(REASONS.length)];
+        JSONObject source = base(userId, date);
+        source.put("date", date.toString());
+        source.put("code", code[0]);
+        source.put("rcode", reason.isEmpty() ? "" : String.valueOf(10000 + random.nextInt(99990000)));
+        source.put("start", date.toString());
+        source.put("stop", date.plusDays(5 + random.nextInt(400)).toString());
+        source.put("encounter", uuid(random));
+        source.put("description", code[1]);
+        source.put("reasondescription", reason);
+        return source;
+    }
+
+    private static JSONObject allergy(String userId, LocalDate date, Random random) {
+        JSONObject source = base(userId, date);
+        source.put("start", date.toString());
+        source.put("encounter", uuid(random));
+        Map<String, String> allergies = new LinkedHashMap<>();
+        for (String[] allergy : ALLERGIES)
+            if (random.nextInt(3) == 0)
+                allergies.put(allergy[0], allergy[1]);
+        source.put("allergies", allergies);
+        return source;
+    }
+
+    private static JSONObject observation(String userId, LocalDate date, Random random) {
+        JSONObject source = base(userId, date);
+        source.put("date", date.toString());
+        source.put("encounter", uuid(random));
+        JSONObject signs = new JSONObject(true);
+        for (String signName : ObservationSeries.SIGN_NAMES)
+            // 大约十分之一的体征缺失
+            if (random.nextInt(10) != 0)
+                signs.put(signName, Math.round((50 + random.nextDouble() * 150) * 10) / 10.0);
+        source.put("signs", signs);
+        return source;
+    }
+
+    private static JSONObject base(String userId, LocalDate date) {
+        JSONObject source = new JSONObject(true);
+        source.put("timestamp", date.atStartOfDay(ZoneOffset.UTC).toEpochSecond());
+        source.put("user_id", userId);
+        return source;
+    }
+
+    private static String uuid(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}